@@ -149,7 +149,13 @@ class AstPrinter implements Expr.Visitor<String>, Stmt.Visitor<String> {
 
   @Override
   public String visitDefaultStmt(Stmt.Default stmt) {
-      return "(default " + stmt.statements + ")";
+      StringBuilder builder = new StringBuilder();
+      builder.append("(default ");
+      for (Stmt statement : stmt.statements) {
+          builder.append(statement.accept(this)).append(" ");
+      }
+      builder.append(")");
+      return builder.toString();
   }
 
   @Override
@@ -0,0 +1,251 @@
+package com.sjlox.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// base for optimizer passes: rebuilds every node from its rewritten children. a node whose children all
+// come back unchanged is reused as is, so resolver annotations and inline caches survive the pass.
+// passes may replace expressions freely, but declarations must stay in place or local slots would move
+abstract class AstRewriter implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+
+  Expr rewrite(Expr expr) {
+    return expr == null ? null : expr.accept(this);
+  }
+
+  Stmt rewrite(Stmt stmt) {
+    return stmt == null ? null : stmt.accept(this);
+  }
+
+  // returns the list itself when no statement in it changed
+  @SuppressWarnings("unchecked")
+  <T extends Stmt> List<T> rewrite(List<T> statements) {
+    List<T> result = null;
+    for (int i = 0; i < statements.size(); i++) {
+      T statement = statements.get(i);
+      T rewritten = (T)rewrite(statement);
+      if (rewritten != statement && result == null) {
+        result = new ArrayList<>(statements.subList(0, i));
+      }
+      if (result != null) result.add(rewritten);
+    }
+    return result == null ? statements : result;
+  }
+
+  private List<Expr> rewriteExprs(List<Expr> exprs) {
+    List<Expr> result = null;
+    for (int i = 0; i < exprs.size(); i++) {
+      Expr expr = exprs.get(i);
+      Expr rewritten = rewrite(expr);
+      if (rewritten != expr && result == null) {
+        result = new ArrayList<>(exprs.subList(0, i));
+      }
+      if (result != null) result.add(rewritten);
+    }
+    return result == null ? exprs : result;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = rewrite(expr.value);
+    if (value == expr.value) return expr;
+    Expr.Assign assign = new Expr.Assign(expr.name, value);
+    assign.slot = expr.slot;
+    assign.upvalue = expr.upvalue;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    Expr.Binary binary = new Expr.Binary(left, expr.operator, right);
+    binary.operands = expr.operands; // rewrites keep values, so they keep types
+    return binary;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = rewrite(expr.callee);
+    List<Expr> arguments = rewriteExprs(expr.arguments);
+    if (callee == expr.callee && arguments == expr.arguments) return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = rewrite(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = rewrite(expr.expression);
+    if (expression == expr.expression) return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = rewrite(expr.object);
+    Expr value = rewrite(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = rewrite(expr.right);
+    if (right == expr.right) return expr;
+    Expr.Unary unary = new Expr.Unary(expr.operator, right);
+    unary.operand = expr.operand;
+    return unary;
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = rewrite(stmt.statements);
+    if (statements == stmt.statements) return stmt;
+    Stmt.Block block = new Stmt.Block(statements);
+    block.closeFrom = stmt.closeFrom;
+    return block;
+  }
+
+  // the superclass is left alone: it has to stay a variable
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = rewrite(stmt.methods);
+    if (methods == stmt.methods) return stmt;
+    Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    klass.slot = stmt.slot;
+    klass.superSlot = stmt.superSlot;
+    return klass;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = rewrite(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    List<Stmt> body = rewrite(stmt.body);
+    if (body == stmt.body) return stmt;
+    Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+    function.slot = stmt.slot;
+    function.frameSize = stmt.frameSize;
+    function.captures = stmt.captures;
+    return function;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt thenBranch = rewrite(stmt.thenBranch);
+    Stmt elseBranch = rewrite(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = rewrite(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    Expr value = rewrite(stmt.value);
+    if (value == stmt.value) return stmt;
+    return new Stmt.Return(stmt.keyword, value);
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Expr initializer = rewrite(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.slot = stmt.slot;
+    return var;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = rewrite(stmt.condition);
+    Stmt body = rewrite(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+
+  @Override
+  public Stmt visitSwitchStmt(Stmt.Switch stmt) {
+    Expr condition = rewrite(stmt.condition);
+    List<Stmt.Case> cases = rewrite(stmt.cases);
+    Stmt.Default defaultCase = (Stmt.Default)rewrite(stmt.defaultCase);
+    if (condition == stmt.condition && cases == stmt.cases && defaultCase == stmt.defaultCase) return stmt;
+    Stmt.Switch result = new Stmt.Switch(condition, cases, defaultCase);
+    if (sameValues(stmt.cases, cases)) result.jumpTable = stmt.jumpTable; // indexed by case, which stay put
+    return result;
+  }
+
+  private static boolean sameValues(List<Stmt.Case> original, List<Stmt.Case> rewritten) {
+    for (int i = 0; i < original.size(); i++) {
+      if (original.get(i).value != rewritten.get(i).value) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public Stmt visitCaseStmt(Stmt.Case stmt) {
+    Expr value = rewrite(stmt.value);
+    List<Stmt> statements = rewrite(stmt.statements);
+    if (value == stmt.value && statements == stmt.statements) return stmt;
+    return new Stmt.Case(value, statements);
+  }
+
+  @Override
+  public Stmt visitDefaultStmt(Stmt.Default stmt) {
+    List<Stmt> statements = rewrite(stmt.statements);
+    if (statements == stmt.statements) return stmt;
+    return new Stmt.Default(statements);
+  }
+
+  @Override
+  public Stmt visitBreakStmt(Stmt.Break stmt) {
+    return stmt;
+  }
+}
@@ -0,0 +1,702 @@
+package com.sjlox.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// compiles the resolved ast into bytecode for the VM: locals become stack slots, captured
+// variables become upvalues, and control flow becomes jumps
+class BytecodeCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+
+  private enum FunctionType {
+    SCRIPT,
+    FUNCTION,
+    INITIALIZER,
+    METHOD
+  }
+
+  private static class Local {
+    final String name;
+    final int depth;
+    boolean isCaptured = false;
+
+    Local(String name, int depth) {
+      this.name = name;
+      this.depth = depth;
+    }
+  }
+
+  private static class Upvalue {
+    final int index;
+    final boolean isLocal;
+
+    Upvalue(int index, boolean isLocal) {
+      this.index = index;
+      this.isLocal = isLocal;
+    }
+  }
+
+  // a loop or switch that break statements jump out of
+  private static class Breakable {
+    final int localCount; // locals that stay live after the break
+    final List<Integer> breakJumps = new ArrayList<>();
+
+    Breakable(int localCount) {
+      this.localCount = localCount;
+    }
+  }
+
+  // per-function compiler state; nested functions push a new one
+  private static class FunctionState {
+    final FunctionState enclosing;
+    final VM.ObjFunction function;
+    final FunctionType type;
+    final List<Local> locals = new ArrayList<>();
+    final List<Upvalue> upvalues = new ArrayList<>();
+    final List<Breakable> breakables = new ArrayList<>();
+    int scopeDepth = 0;
+
+    FunctionState(FunctionState enclosing, VM.ObjFunction function, FunctionType type) {
+      this.enclosing = enclosing;
+      this.function = function;
+      this.type = type;
+      // slot 0 holds the callee, or the receiver in methods
+      locals.add(new Local(type == FunctionType.FUNCTION || type == FunctionType.SCRIPT ? "" : "this", 0));
+    }
+  }
+
+  private FunctionState current = null;
+  private Token token = null; // the token responsible for the code being emitted
+
+  // compiles a whole program into the function the VM runs first
+  VM.ObjFunction compile(List<Stmt> statements) {
+    current = new FunctionState(null, new VM.ObjFunction(null, 0), FunctionType.SCRIPT);
+    for (Stmt statement : statements) {
+      compile(statement);
+    }
+    return endFunction();
+  }
+
+  private void compile(Stmt stmt) {
+    stmt.accept(this);
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private Chunk chunk() {
+    return current.function.chunk;
+  }
+
+  private void emit(int... words) {
+    for (int word : words) {
+      chunk().write(word, token);
+    }
+  }
+
+  private int constant(Object value) {
+    return chunk().addConstant(value);
+  }
+
+  // emits a forward jump and returns the index of its offset, to be patched
+  private int emitJump(int instruction) {
+    emit(instruction, 0);
+    return chunk().count - 1;
+  }
+
+  private void patchJump(int offset) {
+    chunk().code[offset] = chunk().count - offset - 1;
+  }
+
+  private void emitLoop(int loopStart) {
+    emit(OpCode.LOOP, 0);
+    chunk().code[chunk().count - 1] = chunk().count - loopStart;
+  }
+
+  private void emitReturn() {
+    if (current.type == FunctionType.INITIALIZER) {
+      emit(OpCode.GET_LOCAL, 0);
+    } else {
+      emit(OpCode.NIL);
+    }
+    emit(OpCode.RETURN);
+  }
+
+  private VM.ObjFunction endFunction() {
+    emitReturn();
+    VM.ObjFunction function = current.function;
+    function.upvalueCount = current.upvalues.size();
+    function.chunk.freeze();
+    function.maxStack = maxStack(function);
+    current = current.enclosing;
+    return function;
+  }
+
+  private void beginScope() {
+    current.scopeDepth++;
+  }
+
+  private void endScope() {
+    current.scopeDepth--;
+    List<Local> locals = current.locals;
+    while (!locals.isEmpty() && locals.get(locals.size() - 1).depth > current.scopeDepth) {
+      emit(locals.get(locals.size() - 1).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+      locals.remove(locals.size() - 1);
+    }
+  }
+
+  // pops (without forgetting) the locals a break jumps out of
+  private void discardLocals(int localCount) {
+    for (int i = current.locals.size() - 1; i >= localCount; i--) {
+      emit(current.locals.get(i).isCaptured ? OpCode.CLOSE_UPVALUE : OpCode.POP);
+    }
+  }
+
+  private void addLocal(String name) {
+    current.locals.add(new Local(name, current.scopeDepth));
+  }
+
+  // emits the store for a declaration whose value is on top of the stack
+  private void defineVariable(Token name) {
+    if (current.scopeDepth == 0) {
+      token = name;
+      emit(OpCode.DEFINE_GLOBAL, constant(name));
+    } else {
+      addLocal(name.lexeme); // the value simply stays in its stack slot
+    }
+  }
+
+  private static int resolveLocal(FunctionState state, String name) {
+    for (int i = state.locals.size() - 1; i >= 0; i--) {
+      if (state.locals.get(i).name.equals(name)) return i;
+    }
+    return -1;
+  }
+
+  private static int resolveUpvalue(FunctionState state, String name) {
+    if (state.enclosing == null) return -1;
+
+    int local = resolveLocal(state.enclosing, name);
+    if (local != -1) {
+      state.enclosing.locals.get(local).isCaptured = true;
+      return addUpvalue(state, local, true);
+    }
+
+    int upvalue = resolveUpvalue(state.enclosing, name);
+    if (upvalue != -1) return addUpvalue(state, upvalue, false);
+    return -1;
+  }
+
+  private static int addUpvalue(FunctionState state, int index, boolean isLocal) {
+    for (int i = 0; i < state.upvalues.size(); i++) {
+      Upvalue upvalue = state.upvalues.get(i);
+      if (upvalue.index == index && upvalue.isLocal == isLocal) return i;
+    }
+    state.upvalues.add(new Upvalue(index, isLocal));
+    return state.upvalues.size() - 1;
+  }
+
+  // loads or stores a name; resolved is the resolver's slot for it, -1 meaning global
+  private void namedVariable(Token name, int resolved, boolean assign) {
+    token = name;
+    if (resolved >= 0) {
+      int slot = resolveLocal(current, name.lexeme);
+      if (slot != -1) {
+        emit(assign ? OpCode.SET_LOCAL : OpCode.GET_LOCAL, slot);
+        return;
+      }
+      int upvalue = resolveUpvalue(current, name.lexeme);
+      if (upvalue != -1) {
+        emit(assign ? OpCode.SET_UPVALUE : OpCode.GET_UPVALUE, upvalue);
+        return;
+      }
+    }
+    emit(assign ? OpCode.SET_GLOBAL : OpCode.GET_GLOBAL, constant(name));
+  }
+
+  private void function(Stmt.Function stmt, FunctionType type) {
+    current = new FunctionState(current, new VM.ObjFunction(stmt.name.lexeme, stmt.params.size()), type);
+    beginScope();
+    for (Token param : stmt.params) {
+      addLocal(param.lexeme);
+    }
+    for (Stmt statement : stmt.body) {
+      compile(statement);
+    }
+
+    FunctionState state = current;
+    VM.ObjFunction function = endFunction();
+    token = stmt.name;
+    emit(OpCode.CLOSURE, constant(function));
+    for (Upvalue upvalue : state.upvalues) {
+      emit(upvalue.isLocal ? 1 : 0, upvalue.index);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    int classDepth = current.scopeDepth == 0 ? -1 : 0; // how later loads of the class find it
+    token = stmt.name;
+    emit(OpCode.CLASS, constant(stmt.name.lexeme));
+    defineVariable(stmt.name);
+
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      beginScope();
+      addLocal("super");
+      namedVariable(stmt.name, classDepth, false);
+      token = stmt.superclass.name;
+      emit(OpCode.INHERIT);
+    }
+
+    namedVariable(stmt.name, classDepth, false);
+    for (Stmt.Function method : stmt.methods) {
+      function(method, method.name.lexeme.equals("init") ? FunctionType.INITIALIZER : FunctionType.METHOD);
+      token = method.name;
+      emit(OpCode.METHOD, constant(method.name.symbol));
+    }
+    emit(OpCode.POP);
+
+    if (stmt.superclass != null) endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emit(OpCode.POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    if (current.scopeDepth > 0) {
+      addLocal(stmt.name.lexeme); // declared first so the body can capture itself
+      function(stmt, FunctionType.FUNCTION);
+    } else {
+      function(stmt, FunctionType.FUNCTION);
+      defineVariable(stmt.name);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int thenJump = emitJump(OpCode.JUMP_IF_FALSE);
+    emit(OpCode.POP);
+    compile(stmt.thenBranch);
+    int elseJump = emitJump(OpCode.JUMP);
+    patchJump(thenJump);
+    emit(OpCode.POP);
+    if (stmt.elseBranch != null) compile(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OpCode.PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    token = stmt.keyword;
+    if (stmt.value == null) {
+      emitReturn();
+    } else {
+      compile(stmt.value);
+      emit(OpCode.RETURN);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(OpCode.NIL);
+    }
+    defineVariable(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk().count;
+    compile(stmt.condition);
+    int exitJump = emitJump(OpCode.JUMP_IF_FALSE);
+    emit(OpCode.POP);
+
+    Breakable loop = new Breakable(current.locals.size());
+    current.breakables.add(loop);
+    compile(stmt.body);
+    current.breakables.remove(current.breakables.size() - 1);
+
+    emitLoop(loopStart);
+    patchJump(exitJump);
+    emit(OpCode.POP);
+    for (int jump : loop.breakJumps) patchJump(jump);
+    return null;
+  }
+
+  @Override
+  public Void visitSwitchStmt(Stmt.Switch stmt) {
+    if (stmt.jumpTable != null) return compileTableSwitch(stmt);
+
+    // the switch value and the "a case has matched" flag live in hidden locals
+    beginScope();
+    compile(stmt.condition);
+    addLocal(" switch");
+    int value = current.locals.size() - 1;
+    emit(OpCode.FALSE);
+    addLocal(" matched");
+    int matched = current.locals.size() - 1;
+
+    Breakable breakable = new Breakable(current.locals.size());
+    current.breakables.add(breakable);
+
+    // every case value is evaluated in order, as in the tree-walker; once one matches, later cases fall through
+    for (Stmt.Case caseStmt : stmt.cases) {
+      compile(caseStmt.value);
+      emit(OpCode.GET_LOCAL, value, OpCode.EQUAL);
+      int notEqual = emitJump(OpCode.JUMP_IF_FALSE);
+      int enter = emitJump(OpCode.JUMP);
+      patchJump(notEqual);
+      emit(OpCode.POP, OpCode.GET_LOCAL, matched);
+      patchJump(enter);
+      int skip = emitJump(OpCode.JUMP_IF_FALSE);
+      emit(OpCode.POP, OpCode.TRUE, OpCode.SET_LOCAL, matched, OpCode.POP);
+      for (Stmt statement : caseStmt.statements) {
+        compile(statement);
+      }
+      int next = emitJump(OpCode.JUMP);
+      patchJump(skip);
+      emit(OpCode.POP);
+      patchJump(next);
+    }
+
+    if (stmt.defaultCase != null) {
+      emit(OpCode.GET_LOCAL, matched);
+      int runDefault = emitJump(OpCode.JUMP_IF_FALSE);
+      emit(OpCode.POP);
+      int end = emitJump(OpCode.JUMP);
+      patchJump(runDefault);
+      emit(OpCode.POP);
+      for (Stmt statement : stmt.defaultCase.statements) {
+        compile(statement);
+      }
+      patchJump(end);
+    }
+
+    current.breakables.remove(current.breakables.size() - 1);
+    for (int jump : breakable.breakJumps) patchJump(jump);
+    endScope();
+    return null;
+  }
+
+  // constant cases: SWITCH jumps to the first matching case body, and the bodies are laid out in order
+  // so a match falls through the ones after it
+  private Void compileTableSwitch(Stmt.Switch stmt) {
+    beginScope();
+    compile(stmt.condition);
+    Breakable breakable = new Breakable(current.locals.size());
+    current.breakables.add(breakable);
+
+    int[] offsets = new int[stmt.cases.size() + 1]; // filled in below; the constant is the same array
+    emit(OpCode.SWITCH, constant(stmt.jumpTable), constant(offsets));
+    int base = chunk().count;
+    for (int i = 0; i < stmt.cases.size(); i++) {
+      offsets[i] = chunk().count - base;
+      for (Stmt statement : stmt.cases.get(i).statements) {
+        compile(statement);
+      }
+    }
+
+    int end = stmt.defaultCase == null ? -1 : emitJump(OpCode.JUMP); // the default only runs on no match
+    offsets[stmt.cases.size()] = chunk().count - base;
+    if (stmt.defaultCase != null) {
+      for (Stmt statement : stmt.defaultCase.statements) {
+        compile(statement);
+      }
+      patchJump(end);
+    }
+
+    current.breakables.remove(current.breakables.size() - 1);
+    for (int jump : breakable.breakJumps) patchJump(jump);
+    endScope();
+    return null;
+  }
+
+  @Override
+  public Void visitCaseStmt(Stmt.Case stmt) {
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitDefaultStmt(Stmt.Default stmt) {
+    for (Stmt statement : stmt.statements) {
+      compile(statement);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    if (current.breakables.isEmpty()) {
+      // the resolver rejects these already, so this only guards against a pass producing one
+      Lox.error(stmt.keyword, "Can't break outside a loop or switch.");
+      return null;
+    }
+    Breakable target = current.breakables.get(current.breakables.size() - 1);
+    token = stmt.keyword;
+    discardLocals(target.localCount);
+    target.breakJumps.add(emitJump(OpCode.JUMP));
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    namedVariable(expr.name, expr.slot, true);
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+    token = expr.operator;
+    switch (expr.operator.type) {
+      case BANG_EQUAL: emit(OpCode.NOT_EQUAL); break;
+      case EQUAL_EQUAL: emit(OpCode.EQUAL); break;
+      case GREATER: emit(OpCode.GREATER); break;
+      case GREATER_EQUAL: emit(OpCode.GREATER_EQUAL); break;
+      case LESS: emit(OpCode.LESS); break;
+      case LESS_EQUAL: emit(OpCode.LESS_EQUAL); break;
+      case MINUS: emit(OpCode.SUBTRACT); break;
+      case PLUS: emit(OpCode.ADD); break;
+      case SLASH: emit(OpCode.DIVIDE); break;
+      case STAR: emit(OpCode.MULTIPLY); break;
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    if (expr.callee instanceof Expr.Get) {
+      // obj.method(args) calls the method without allocating a bound method
+      Expr.Get get = (Expr.Get)expr.callee;
+      compile(get.object);
+      for (Expr argument : expr.arguments) compile(argument);
+      token = get.name;
+      emit(OpCode.INVOKE, constant(get.name.symbol), expr.arguments.size());
+      return null;
+    }
+
+    if (expr.callee instanceof Expr.Super) {
+      Expr.Super superExpr = (Expr.Super)expr.callee;
+      namedVariable(new Token(TokenType.THIS, "this", null, superExpr.keyword.line), 0, false);
+      for (Expr argument : expr.arguments) compile(argument);
+      namedVariable(superExpr.keyword, 0, false);
+      token = superExpr.method;
+      emit(OpCode.SUPER_INVOKE, constant(superExpr.method.symbol), expr.arguments.size());
+      return null;
+    }
+
+    compile(expr.callee);
+    for (Expr argument : expr.arguments) compile(argument);
+    token = expr.paren;
+    emit(OpCode.CALL, expr.arguments.size());
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    token = expr.name;
+    emit(OpCode.GET_PROPERTY, constant(expr.name.symbol));
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emit(OpCode.NIL);
+    } else if (expr.value.equals(true)) {
+      emit(OpCode.TRUE);
+    } else if (expr.value.equals(false)) {
+      emit(OpCode.FALSE);
+    } else {
+      emit(OpCode.CONSTANT, constant(expr.value));
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(OpCode.JUMP_IF_FALSE);
+      int endJump = emitJump(OpCode.JUMP);
+      patchJump(elseJump);
+      emit(OpCode.POP);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OpCode.JUMP_IF_FALSE);
+      emit(OpCode.POP);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    token = expr.name;
+    emit(OpCode.SET_PROPERTY, constant(expr.name.symbol));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    namedVariable(new Token(TokenType.THIS, "this", null, expr.keyword.line), 0, false);
+    namedVariable(expr.keyword, 0, false);
+    token = expr.method;
+    emit(OpCode.GET_SUPER, constant(expr.method.symbol));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    namedVariable(expr.keyword, expr.slot, false);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+    token = expr.operator;
+    emit(expr.operator.type == TokenType.BANG ? OpCode.NOT : OpCode.NEGATE);
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    namedVariable(expr.name, expr.slot, false);
+    return null;
+  }
+
+  // how far each instruction moves the stack top, for the code words that start an instruction
+  private static int stackEffect(int[] code, int ip) {
+    switch (code[ip]) {
+      case OpCode.CONSTANT: case OpCode.NIL: case OpCode.TRUE: case OpCode.FALSE:
+      case OpCode.GET_LOCAL: case OpCode.GET_GLOBAL: case OpCode.GET_UPVALUE:
+      case OpCode.CLOSURE: case OpCode.CLASS:
+        return 1;
+      case OpCode.POP: case OpCode.DEFINE_GLOBAL: case OpCode.SET_PROPERTY: case OpCode.GET_SUPER:
+      case OpCode.EQUAL: case OpCode.NOT_EQUAL: case OpCode.GREATER: case OpCode.GREATER_EQUAL:
+      case OpCode.LESS: case OpCode.LESS_EQUAL: case OpCode.ADD: case OpCode.SUBTRACT:
+      case OpCode.MULTIPLY: case OpCode.DIVIDE: case OpCode.PRINT: case OpCode.CLOSE_UPVALUE:
+      case OpCode.INHERIT: case OpCode.METHOD: case OpCode.RETURN: case OpCode.SWITCH:
+        return -1;
+      case OpCode.CALL:
+        return -code[ip + 1];
+      case OpCode.INVOKE:
+        return -code[ip + 2];
+      case OpCode.SUPER_INVOKE:
+        return -code[ip + 2] - 1;
+      default:
+        return 0;
+    }
+  }
+
+  private static int instructionLength(VM.ObjFunction function, int ip) {
+    int[] code = function.chunk.code;
+    switch (code[ip]) {
+      case OpCode.NIL: case OpCode.TRUE: case OpCode.FALSE: case OpCode.POP:
+      case OpCode.EQUAL: case OpCode.NOT_EQUAL: case OpCode.GREATER: case OpCode.GREATER_EQUAL:
+      case OpCode.LESS: case OpCode.LESS_EQUAL: case OpCode.ADD: case OpCode.SUBTRACT:
+      case OpCode.MULTIPLY: case OpCode.DIVIDE: case OpCode.NOT: case OpCode.NEGATE:
+      case OpCode.PRINT: case OpCode.CLOSE_UPVALUE: case OpCode.RETURN: case OpCode.INHERIT:
+        return 1;
+      case OpCode.INVOKE: case OpCode.SUPER_INVOKE: case OpCode.SWITCH:
+        return 3;
+      case OpCode.CLOSURE:
+        return 2 + 2 * ((VM.ObjFunction)function.chunk.constants[code[ip + 1]]).upvalueCount;
+      default:
+        return 2;
+    }
+  }
+
+  // walks every path through the code to find the deepest the stack gets, so the VM can size frames up front
+  private static int maxStack(VM.ObjFunction function) {
+    int[] code = function.chunk.code;
+    int[] heights = new int[code.length];
+    Arrays.fill(heights, -1);
+    List<Integer> worklist = new ArrayList<>();
+    heights[0] = function.arity + 1;
+    worklist.add(0);
+    int max = heights[0];
+
+    while (!worklist.isEmpty()) {
+      int ip = worklist.remove(worklist.size() - 1);
+      int height = heights[ip];
+      while (ip < code.length) {
+        int op = code[ip];
+        height += stackEffect(code, ip);
+        max = Math.max(max, height);
+        int next = ip + instructionLength(function, ip);
+
+        if (op == OpCode.RETURN) break;
+        if (op == OpCode.SWITCH) {
+          for (int offset : (int[])function.chunk.constants[code[ip + 2]]) {
+            if (heights[next + offset] == -1) {
+              heights[next + offset] = height;
+              worklist.add(next + offset);
+            }
+          }
+          break;
+        }
+        if (op == OpCode.JUMP || op == OpCode.JUMP_IF_FALSE || op == OpCode.LOOP) {
+          int target = op == OpCode.LOOP ? next - code[ip + 1] : next + code[ip + 1];
+          if (heights[target] == -1) {
+            heights[target] = height;
+            worklist.add(target);
+          }
+          if (op != OpCode.JUMP_IF_FALSE) break;
+        }
+        if (next < code.length && heights[next] != -1) break;
+        if (next < code.length) heights[next] = height;
+        ip = next;
+      }
+    }
+    return max;
+  }
+}
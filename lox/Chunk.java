@@ -0,0 +1,40 @@
+package com.sjlox.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// a compiled function body: the code words, the token each word came from (for runtime errors) and its constants
+class Chunk {
+  int[] code = new int[16];
+  Token[] tokens = new Token[16];
+  int count = 0;
+  Object[] constants; // frozen from constantList once the function is compiled
+  Global[] globals; // by constant index: the cell each global's name constant was linked to by the vm
+  private final List<Object> constantList = new ArrayList<>();
+
+  void write(int word, Token token) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      tokens = Arrays.copyOf(tokens, count * 2);
+    }
+    code[count] = word;
+    tokens[count] = token;
+    count++;
+  }
+
+  // numbers and strings are shared, tokens and functions are kept by identity
+  int addConstant(Object value) {
+    int index = constantList.indexOf(value);
+    if (index >= 0) return index;
+    constantList.add(value);
+    return constantList.size() - 1;
+  }
+
+  void freeze() {
+    code = Arrays.copyOf(code, count);
+    tokens = Arrays.copyOf(tokens, count);
+    constants = constantList.toArray();
+    globals = new Global[constants.length];
+  }
+}
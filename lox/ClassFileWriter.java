@@ -0,0 +1,239 @@
+package com.sjlox.lox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// minimal emitter for jvm class files, just enough for the Jit. it writes version 49 class files,
+// which the jvm verifies by type inference, so no stack map frames have to be computed
+class ClassFileWriter {
+  private static final int VERSION = 49;
+
+  private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+  private final DataOutputStream poolOut = new DataOutputStream(pool);
+  private final Map<String, Integer> poolIndex = new HashMap<>();
+  private int poolCount = 1;
+  private final List<MethodWriter> methods = new ArrayList<>();
+
+  // bytecode of one method; the caller reports each instruction's stack effect so max_stack comes out right
+  class MethodWriter {
+    final int access;
+    final int name;
+    final int descriptor;
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final List<int[]> fixups = new ArrayList<>(); // {instruction offset, operand offset, label}
+    private final List<Integer> labels = new ArrayList<>();
+    private int stack = 0;
+    private int maxStack = 0;
+    int maxLocals = 0;
+
+    MethodWriter(int access, String name, String descriptor) {
+      this.access = access;
+      this.name = utf8(name);
+      this.descriptor = utf8(descriptor);
+    }
+
+    int length() {
+      return code.size();
+    }
+
+    private void adjust(int stackEffect) {
+      stack += stackEffect;
+      maxStack = Math.max(maxStack, stack);
+    }
+
+    void op(int opcode, int stackEffect) {
+      code.write(opcode);
+      adjust(stackEffect);
+    }
+
+    void op1(int opcode, int operand, int stackEffect) {
+      code.write(opcode);
+      code.write(operand);
+      adjust(stackEffect);
+    }
+
+    void op2(int opcode, int operand, int stackEffect) {
+      code.write(opcode);
+      code.write(operand >> 8);
+      code.write(operand);
+      adjust(stackEffect);
+    }
+
+    // loads and stores of double locals, picking the short or wide form
+    void local(int opcode, int shortForm, int index, int stackEffect) {
+      if (index <= 3) {
+        op(shortForm + index, stackEffect);
+      } else if (index <= 255) {
+        op1(opcode, index, stackEffect);
+      } else {
+        code.write(0xc4); // wide
+        op2(opcode, index, stackEffect);
+      }
+    }
+
+    void invokeInterface(String owner, String name, String descriptor, int argSlots, int stackEffect) {
+      code.write(0xb9);
+      int index = interfaceMethodRef(owner, name, descriptor);
+      code.write(index >> 8);
+      code.write(index);
+      code.write(argSlots + 1);
+      code.write(0);
+      adjust(stackEffect);
+    }
+
+    int newLabel() {
+      labels.add(-1);
+      return labels.size() - 1;
+    }
+
+    void mark(int label) {
+      labels.set(label, code.size());
+    }
+
+    // a branch with a 16-bit offset to a label that may not be marked yet
+    void jump(int opcode, int label, int stackEffect) {
+      int at = code.size();
+      code.write(opcode);
+      fixups.add(new int[] {at, code.size(), label});
+      code.write(0);
+      code.write(0);
+      adjust(stackEffect);
+    }
+
+    private byte[] bytes() {
+      byte[] bytes = code.toByteArray();
+      for (int[] fixup : fixups) {
+        int offset = labels.get(fixup[2]) - fixup[0];
+        bytes[fixup[1]] = (byte)(offset >> 8);
+        bytes[fixup[1] + 1] = (byte)offset;
+      }
+      return bytes;
+    }
+  }
+
+  MethodWriter method(int access, String name, String descriptor) {
+    MethodWriter method = new MethodWriter(access, name, descriptor);
+    methods.add(method);
+    return method;
+  }
+
+  int utf8(String value) {
+    return entry("U" + value, out -> {
+      out.writeByte(1);
+      out.writeUTF(value);
+    }, 1);
+  }
+
+  int classRef(String internalName) {
+    int name = utf8(internalName);
+    return entry("C" + internalName, out -> {
+      out.writeByte(7);
+      out.writeShort(name);
+    }, 1);
+  }
+
+  int doubleConstant(double value) {
+    long bits = Double.doubleToRawLongBits(value);
+    return entry("D" + bits, out -> {
+      out.writeByte(6);
+      out.writeLong(bits);
+    }, 2);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(11, owner, name, descriptor);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    int ownerIndex = classRef(owner);
+    int nameIndex = utf8(name);
+    int descriptorIndex = utf8(descriptor);
+    int nameAndType = entry("N" + name + ":" + descriptor, out -> {
+      out.writeByte(12);
+      out.writeShort(nameIndex);
+      out.writeShort(descriptorIndex);
+    }, 1);
+    return entry("M" + tag + owner + "." + name + descriptor, out -> {
+      out.writeByte(tag);
+      out.writeShort(ownerIndex);
+      out.writeShort(nameAndType);
+    }, 1);
+  }
+
+  private interface EntryWriter {
+    void write(DataOutputStream out) throws IOException;
+  }
+
+  // adds a constant pool entry once; doubles take up two indices
+  private int entry(String key, EntryWriter writer, int size) {
+    Integer existing = poolIndex.get(key);
+    if (existing != null) return existing;
+    try {
+      writer.write(poolOut);
+    } catch (IOException error) {
+      throw new IllegalStateException(error); // cannot happen writing to memory
+    }
+    int index = poolCount;
+    poolCount += size;
+    poolIndex.put(key, index);
+    return index;
+  }
+
+  byte[] toByteArray(int access, String thisClass, String superClass, String... interfaces) {
+    int thisIndex = classRef(thisClass);
+    int superIndex = classRef(superClass);
+    int[] interfaceIndices = new int[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaceIndices[i] = classRef(interfaces[i]);
+    }
+    int codeName = utf8("Code");
+
+    try {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(bytes);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0);
+      out.writeShort(VERSION);
+      out.writeShort(poolCount);
+      poolOut.flush();
+      pool.writeTo(out);
+      out.writeShort(access);
+      out.writeShort(thisIndex);
+      out.writeShort(superIndex);
+      out.writeShort(interfaceIndices.length);
+      for (int index : interfaceIndices) out.writeShort(index);
+      out.writeShort(0); // no fields
+
+      out.writeShort(methods.size());
+      for (MethodWriter method : methods) {
+        byte[] code = method.bytes();
+        out.writeShort(method.access);
+        out.writeShort(method.name);
+        out.writeShort(method.descriptor);
+        out.writeShort(1);
+        out.writeShort(codeName);
+        out.writeInt(12 + code.length);
+        out.writeShort(method.maxStack);
+        out.writeShort(method.maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // no exception table
+        out.writeShort(0); // no code attributes
+      }
+
+      out.writeShort(0); // no class attributes
+      return bytes.toByteArray();
+    } catch (IOException error) {
+      throw new IllegalStateException(error);
+    }
+  }
+}
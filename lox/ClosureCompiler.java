@@ -0,0 +1,883 @@
+package com.sjlox.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// alternative execution engine: compiles the resolved ast once into a tree of pre-linked lambdas,
+// one per operator and node shape, so running the program needs no visitor dispatch or operator switch
+class ClosureCompiler implements Expr.Visitor<ClosureCompiler.ExprNode>, Stmt.Visitor<ClosureCompiler.StmtNode> {
+
+  // a compiled expression, run with the upvalues of the closure it is in
+  interface ExprNode {
+    Object evaluate(Upvalue[] upvalues);
+  }
+
+  // a compiled expression TypeInference proved to be a number, giving its value unboxed
+  interface NumberNode {
+    double evaluate(Upvalue[] upvalues);
+  }
+
+  // a compiled statement: returns null to carry on with the next one, or BREAK/RETURN to unwind
+  interface StmtNode {
+    Object execute(Upvalue[] upvalues);
+  }
+
+  static final Object BREAK = new Object();
+  static final Object RETURN = new Object();
+  static final Object TAIL_CALL = Interpreter.TAIL_CALL; // the call is left in tailCall, as in the tree-walker
+  final LoxFunction.TailCall tailCall = new LoxFunction.TailCall();
+
+  final Environment globals = new Environment();
+  private Object returnValue; // set by a return statement, picked up by the call it unwinds to
+
+  // value stack holding a frame of locals per call, and the upvalues still pointing into it, as in the
+  // tree-walker
+  private Object[] stack = new Object[256];
+  private int fp = 0;
+  private int sp = 0;
+  private Upvalue openUpvalues = null;
+
+  ClosureCompiler() {
+    Interpreter.defineNatives(globals);
+  }
+
+  // compile and run a list of statements, giving the top-level code a frame of frameSize slots
+  void interpret(List<Stmt> statements, int frameSize) {
+    List<StmtNode> program = new ArrayList<>();
+    for (Stmt statement : statements) {
+      program.add(compile(statement));
+    }
+
+    growStack(frameSize);
+    sp = frameSize;
+    try {
+      for (StmtNode node : program) {
+        node.execute(null); // the top level has no upvalues
+      }
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      closeUpvalues(0);
+      fp = sp = 0;
+    }
+  }
+
+  // runs a compiled body in a new stack frame holding the receiver (for methods) and the arguments
+  Object executeFrame(LoxFunction function, StmtNode body, LoxInstance receiver, Object[] arguments) {
+    int callerFp = fp;
+    growStack(function.declaration.frameSize);
+    fp = sp;
+    sp += function.declaration.frameSize;
+    try {
+      int slot = fp;
+      if (function.isMethod) stack[slot++] = receiver;
+      for (Object argument : arguments) {
+        stack[slot++] = argument;
+      }
+      return body.execute(function.upvalues);
+    } finally {
+      closeUpvalues(fp);
+      sp = fp;
+      fp = callerFp;
+    }
+  }
+
+  // executeFrame for up to three arguments passed one by one, so no array is made for them
+  Object executeFrame(LoxFunction function, StmtNode body, LoxInstance receiver, int count,
+                      Object a, Object b, Object c) {
+    int callerFp = fp;
+    growStack(function.declaration.frameSize);
+    fp = sp;
+    sp += function.declaration.frameSize;
+    try {
+      int slot = fp;
+      if (function.isMethod) stack[slot++] = receiver;
+      if (count > 0) stack[slot++] = a;
+      if (count > 1) stack[slot++] = b;
+      if (count > 2) stack[slot] = c;
+      return body.execute(function.upvalues);
+    } finally {
+      closeUpvalues(fp);
+      sp = fp;
+      fp = callerFp;
+    }
+  }
+
+  private void growStack(int size) {
+    if (sp + size > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + size));
+    }
+  }
+
+  // the upvalues of a new closure, made from the current frame's slots and the enclosing closure's upvalues
+  private Upvalue[] capture(int[] captures, Upvalue[] upvalues) {
+    Upvalue[] captured = new Upvalue[captures.length];
+    for (int i = 0; i < captures.length; i++) {
+      int capture = captures[i];
+      captured[i] = capture >= 0 ? captureUpvalue(fp + capture) : upvalues[~capture];
+    }
+    return captured;
+  }
+
+  private Upvalue captureUpvalue(int slot) {
+    Upvalue previous = null;
+    Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    Upvalue created = new Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  // moves every captured variable at or above the given stack slot off the stack
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  // see LoxFunction.runCompiled
+  Object runCompiled(LoxFunction function, Object[] arguments) {
+    return function.runCompiled(globals, stack, arguments, true);
+  }
+
+  private Object read(Upvalue upvalue) {
+    return upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+  }
+
+  private void write(Upvalue upvalue, Object value) {
+    if (upvalue.slot >= 0) {
+      stack[upvalue.slot] = value;
+    } else {
+      upvalue.closed = value;
+    }
+  }
+
+  // hands the value of the last return statement to the call that caught its signal
+  Object takeReturnValue() {
+    Object value = returnValue;
+    returnValue = null;
+    return value;
+  }
+
+  private ExprNode compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private StmtNode compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // compiles statements that run one after the other
+  private StmtNode sequence(List<Stmt> statements) {
+    StmtNode[] nodes = new StmtNode[statements.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(statements.get(i));
+    }
+
+    if (nodes.length == 0) return upvalues -> null;
+    if (nodes.length == 1) return nodes[0];
+    return upvalues -> {
+      for (StmtNode node : nodes) {
+        Object signal = node.execute(upvalues);
+        if (signal != null) return signal;
+      }
+      return null;
+    };
+  }
+
+  // binds a declared name: globals in their cell, locals in the frame slot the resolver gave them
+  private StmtNode declare(int slot, Token name, ExprNode value) {
+    if (slot < 0) {
+      Global global = globals.cell(name.symbol);
+      return upvalues -> {
+        global.define(value.evaluate(upvalues));
+        return null;
+      };
+    }
+    return upvalues -> {
+      Object result = value.evaluate(upvalues); // before reading stack, which a call may grow
+      stack[fp + slot] = result;
+      return null;
+    };
+  }
+
+  @Override
+  public StmtNode visitBlockStmt(Stmt.Block stmt) {
+    StmtNode body = sequence(stmt.statements);
+    if (stmt.closeFrom < 0) return body;
+
+    // closures made in the block keep its captured locals, fresh ones each time a loop runs it
+    int closeFrom = stmt.closeFrom;
+    return upvalues -> {
+      Object signal = body.execute(upvalues);
+      closeUpvalues(fp + closeFrom);
+      return signal;
+    };
+  }
+
+  @Override
+  public StmtNode visitClassStmt(Stmt.Class stmt) {
+    ExprNode superclassNode = stmt.superclass == null ? null : compile(stmt.superclass);
+
+    Map<Stmt.Function, StmtNode> bodies = new HashMap<>();
+    for (Stmt.Function method : stmt.methods) {
+      bodies.put(method, sequence(method.body));
+    }
+
+    return declare(stmt.slot, stmt.name, upvalues -> {
+      Object superclass = null;
+      if (superclassNode != null) {
+        superclass = superclassNode.evaluate(upvalues);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(stmt.superclass.name, "Superclass must be a class.");
+        }
+        stack[fp + stmt.superSlot] = superclass;
+      }
+
+      Map<Symbol, LoxFunction> methods = new HashMap<>();
+      for (Stmt.Function method : stmt.methods) {
+        methods.put(method.name.symbol, new CompiledFunction(this, method, bodies.get(method),
+            capture(method.captures, upvalues), true, method.name.symbol == Symbol.INIT));
+      }
+      if (superclass != null) closeUpvalues(fp + stmt.superSlot); // the methods keep 'super'
+      return new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
+    });
+  }
+
+  @Override
+  public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+    ExprNode expression = compile(stmt.expression);
+    return upvalues -> {
+      expression.evaluate(upvalues);
+      return null;
+    };
+  }
+
+  @Override
+  public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+    StmtNode body = sequence(stmt.body);
+    return declare(stmt.slot, stmt.name,
+        upvalues -> new CompiledFunction(this, stmt, body, capture(stmt.captures, upvalues), false, false));
+  }
+
+  @Override
+  public StmtNode visitIfStmt(Stmt.If stmt) {
+    ExprNode condition = compile(stmt.condition);
+    StmtNode thenBranch = compile(stmt.thenBranch);
+    if (stmt.elseBranch == null) {
+      return upvalues -> Interpreter.isTruthy(condition.evaluate(upvalues))
+          ? thenBranch.execute(upvalues) : null;
+    }
+    StmtNode elseBranch = compile(stmt.elseBranch);
+    return upvalues -> Interpreter.isTruthy(condition.evaluate(upvalues))
+        ? thenBranch.execute(upvalues) : elseBranch.execute(upvalues);
+  }
+
+  @Override
+  public StmtNode visitPrintStmt(Stmt.Print stmt) {
+    ExprNode expression = compile(stmt.expression);
+    return upvalues -> {
+      System.out.println(Interpreter.stringify(expression.evaluate(upvalues)));
+      return null;
+    };
+  }
+
+  @Override
+  public StmtNode visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) {
+      return upvalues -> {
+        returnValue = null;
+        return RETURN;
+      };
+    }
+    if (stmt.value instanceof Expr.Call) {
+      ExprNode call = compileCall((Expr.Call)stmt.value, true);
+      return upvalues -> {
+        Object value = call.evaluate(upvalues);
+        if (value == TAIL_CALL) return TAIL_CALL;
+        returnValue = value;
+        return RETURN;
+      };
+    }
+    ExprNode value = compile(stmt.value);
+    return upvalues -> {
+      returnValue = value.evaluate(upvalues);
+      return RETURN;
+    };
+  }
+
+  @Override
+  public StmtNode visitVarStmt(Stmt.Var stmt) {
+    ExprNode initializer = stmt.initializer == null ? upvalues -> null : compile(stmt.initializer);
+    return declare(stmt.slot, stmt.name, initializer);
+  }
+
+  @Override
+  public StmtNode visitWhileStmt(Stmt.While stmt) {
+    ExprNode condition = compile(stmt.condition);
+    StmtNode body = compile(stmt.body);
+    if (stmt.counted != null) return counted(stmt.counted, condition, body);
+    return upvalues -> {
+      while (Interpreter.isTruthy(condition.evaluate(upvalues))) {
+        Object signal = body.execute(upvalues);
+        if (signal == BREAK) break;
+        if (signal != null) return signal;
+      }
+      return null;
+    };
+  }
+
+  // as Interpreter.executeCounted: a primitive counter, a limit evaluated once and the invariants hoisted
+  // into their temps, falling back to the plain loop when the counter or limit turns out not to be a number
+  private StmtNode counted(CountedLoop loop, ExprNode condition, StmtNode whileBody) {
+    int slot = loop.slot;
+    double step = loop.step;
+    ExprNode limitNode = compile(loop.limit);
+    StmtNode plainBody = compile(loop.body);
+    StmtNode hoistedBody = loop.hoistedBody == null ? null : compile(loop.hoistedBody);
+    ExprNode[] invariants = new ExprNode[loop.invariants.length];
+    for (int i = 0; i < invariants.length; i++) {
+      invariants[i] = compile(loop.invariants[i]);
+    }
+    int[] temps = loop.temps;
+
+    return upvalues -> {
+      Object start = stack[fp + slot];
+      Object end = limitNode.evaluate(upvalues);
+      if (!(start instanceof Double && end instanceof Double)) {
+        while (Interpreter.isTruthy(condition.evaluate(upvalues))) {
+          Object signal = whileBody.execute(upvalues);
+          if (signal == BREAK) break;
+          if (signal != null) return signal;
+        }
+        return null;
+      }
+
+      StmtNode body = plainBody;
+      if (hoistedBody != null) {
+        try {
+          for (int i = 0; i < invariants.length; i++) {
+            Object value = invariants[i].evaluate(upvalues);
+            stack[fp + temps[i]] = value;
+          }
+          body = hoistedBody;
+        } catch (RuntimeError error) {
+          // an invariant the body might never reach failed: run the body as written
+        }
+      }
+
+      double counter = (double)start;
+      double limit = (double)end;
+      while (loop.test(counter, limit)) {
+        stack[fp + slot] = counter;
+        Object signal = body.execute(upvalues);
+        if (signal == BREAK) break;
+        if (signal != null) return signal;
+        counter += step;
+      }
+      stack[fp + slot] = counter;
+      return null;
+    };
+  }
+
+  @Override
+  public StmtNode visitSwitchStmt(Stmt.Switch stmt) {
+    ExprNode condition = compile(stmt.condition);
+    ExprNode[] values = new ExprNode[stmt.cases.size()];
+    StmtNode[] bodies = new StmtNode[stmt.cases.size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = compile(stmt.cases.get(i).value);
+      bodies[i] = sequence(stmt.cases.get(i).statements);
+    }
+    StmtNode defaultBody = stmt.defaultCase == null ? null : compile(stmt.defaultCase);
+
+    JumpTable table = stmt.jumpTable;
+    if (table != null) {
+      // constant cases: start at the first match and fall through from there
+      return upvalues -> {
+        int first = table.lookup(condition.evaluate(upvalues));
+        if (first < 0) {
+          if (defaultBody == null) return null;
+          Object signal = defaultBody.execute(upvalues);
+          return signal == BREAK ? null : signal;
+        }
+        for (int i = first; i < bodies.length; i++) {
+          Object signal = bodies[i].execute(upvalues);
+          if (signal == BREAK) return null;
+          if (signal != null) return signal;
+        }
+        return null;
+      };
+    }
+
+    return upvalues -> {
+      Object switchValue = condition.evaluate(upvalues);
+      boolean caseMatched = false;
+
+      // same order of evaluation and fall-through as the tree-walker
+      for (int i = 0; i < values.length; i++) {
+        Object caseValue = values[i].evaluate(upvalues);
+        if (caseMatched || Interpreter.isEqual(switchValue, caseValue)) {
+          caseMatched = true;
+          Object signal = bodies[i].execute(upvalues);
+          if (signal == BREAK) return null;
+          if (signal != null) return signal;
+        }
+      }
+
+      if (!caseMatched && defaultBody != null) {
+        Object signal = defaultBody.execute(upvalues);
+        if (signal != BREAK) return signal;
+      }
+      return null;
+    };
+  }
+
+  @Override
+  public StmtNode visitCaseStmt(Stmt.Case stmt) {
+    return sequence(stmt.statements);
+  }
+
+  @Override
+  public StmtNode visitDefaultStmt(Stmt.Default stmt) {
+    return sequence(stmt.statements);
+  }
+
+  @Override
+  public StmtNode visitBreakStmt(Stmt.Break stmt) {
+    return upvalues -> BREAK;
+  }
+
+  @Override
+  public ExprNode visitAssignExpr(Expr.Assign expr) {
+    ExprNode value = compile(expr.value);
+    Token name = expr.name;
+    int slot = expr.slot;
+
+    if (expr.upvalue) {
+      return upvalues -> {
+        Object result = value.evaluate(upvalues);
+        write(upvalues[slot], result);
+        return result;
+      };
+    }
+    if (slot < 0) {
+      Global global = globals.cell(name.symbol); // linked once, at compile time
+      return upvalues -> {
+        Object result = value.evaluate(upvalues);
+        global.assign(name, result);
+        return result;
+      };
+    }
+    return upvalues -> {
+      Object result = value.evaluate(upvalues);
+      stack[fp + slot] = result;
+      return result;
+    };
+  }
+
+  @Override
+  public ExprNode visitBinaryExpr(Expr.Binary expr) {
+    if (expr.operands == LoxType.NUMBER) {
+      ExprNode proven = provenBinary(expr);
+      if (proven != null) return proven;
+    }
+    if (expr.operands == LoxType.STRING && expr.operator.type == TokenType.PLUS) {
+      ExprNode a = compile(expr.left);
+      ExprNode b = compile(expr.right);
+      Token operator = expr.operator;
+      return upvalues -> {
+        Object left = a.evaluate(upvalues);
+        Object right = b.evaluate(upvalues);
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+          return LoxString.concat((CharSequence)left, (CharSequence)right);
+        }
+        if (left instanceof Double && right instanceof Double) return (double)left + (double)right;
+        throw new RuntimeError(operator, "operands must be of same type.");
+      };
+    }
+
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+    Token operator = expr.operator;
+
+    switch (operator.type) {
+      case BANG_EQUAL:
+        return upvalues -> !Interpreter.isEqual(left.evaluate(upvalues), right.evaluate(upvalues));
+      case EQUAL_EQUAL:
+        return upvalues -> Interpreter.isEqual(left.evaluate(upvalues), right.evaluate(upvalues));
+      case GREATER:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a > (double)b;
+        };
+      case GREATER_EQUAL:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a >= (double)b;
+        };
+      case LESS:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a < (double)b;
+        };
+      case LESS_EQUAL:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a <= (double)b;
+        };
+      case MINUS:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a - (double)b;
+        };
+      case PLUS:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          if (a instanceof Double && b instanceof Double) {
+            return (double)a + (double)b;
+          }
+          if (a instanceof CharSequence && b instanceof CharSequence) {
+            return LoxString.concat((CharSequence)a, (CharSequence)b);
+          }
+          throw new RuntimeError(operator, "operands must be of same type.");
+        };
+      case SLASH:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a / (double)b;
+        };
+      case STAR:
+        return upvalues -> {
+          Object a = left.evaluate(upvalues);
+          Object b = right.evaluate(upvalues);
+          Interpreter.checkNumberOperands(operator, a, b);
+          return (double)a * (double)b;
+        };
+    }
+    return upvalues -> null;
+  }
+
+  // a comparison or arithmetic on operands proven to be numbers, or null for equality
+  private ExprNode provenBinary(Expr.Binary expr) {
+    switch (expr.operator.type) {
+      case GREATER: {
+        NumberNode left = compileNumber(expr.left, expr);
+        NumberNode right = compileNumber(expr.right, expr);
+        return upvalues -> left.evaluate(upvalues) > right.evaluate(upvalues);
+      }
+      case GREATER_EQUAL: {
+        NumberNode left = compileNumber(expr.left, expr);
+        NumberNode right = compileNumber(expr.right, expr);
+        return upvalues -> left.evaluate(upvalues) >= right.evaluate(upvalues);
+      }
+      case LESS: {
+        NumberNode left = compileNumber(expr.left, expr);
+        NumberNode right = compileNumber(expr.right, expr);
+        return upvalues -> left.evaluate(upvalues) < right.evaluate(upvalues);
+      }
+      case LESS_EQUAL: {
+        NumberNode left = compileNumber(expr.left, expr);
+        NumberNode right = compileNumber(expr.right, expr);
+        return upvalues -> left.evaluate(upvalues) <= right.evaluate(upvalues);
+      }
+      case PLUS:
+      case MINUS:
+      case STAR:
+      case SLASH: {
+        NumberNode number = compileNumber(expr, expr);
+        return upvalues -> number.evaluate(upvalues); // boxed once, at the end
+      }
+    }
+    return null;
+  }
+
+  // compiles an operand of user proven to be a number so that arithmetic on proven operands passes doubles
+  private NumberNode compileNumber(Expr expr, Expr user) {
+    if (expr instanceof Expr.Binary && ((Expr.Binary)expr).operands == LoxType.NUMBER) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      switch (binary.operator.type) {
+        case PLUS: {
+          NumberNode left = compileNumber(binary.left, binary);
+          NumberNode right = compileNumber(binary.right, binary);
+          return upvalues -> left.evaluate(upvalues) + right.evaluate(upvalues);
+        }
+        case MINUS: {
+          NumberNode left = compileNumber(binary.left, binary);
+          NumberNode right = compileNumber(binary.right, binary);
+          return upvalues -> left.evaluate(upvalues) - right.evaluate(upvalues);
+        }
+        case STAR: {
+          NumberNode left = compileNumber(binary.left, binary);
+          NumberNode right = compileNumber(binary.right, binary);
+          return upvalues -> left.evaluate(upvalues) * right.evaluate(upvalues);
+        }
+        case SLASH: {
+          NumberNode left = compileNumber(binary.left, binary);
+          NumberNode right = compileNumber(binary.right, binary);
+          return upvalues -> left.evaluate(upvalues) / right.evaluate(upvalues);
+        }
+      }
+    } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operand == LoxType.NUMBER
+        && ((Expr.Unary)expr).operator.type == TokenType.MINUS) {
+      NumberNode right = compileNumber(((Expr.Unary)expr).right, expr);
+      return upvalues -> -right.evaluate(upvalues);
+    } else if (expr instanceof Expr.Grouping) {
+      return compileNumber(((Expr.Grouping)expr).expression, user);
+    } else if (expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double) {
+      double value = (double)((Expr.Literal)expr).value;
+      return upvalues -> value;
+    }
+    ExprNode node = compile(expr);
+    return upvalues -> {
+      Object value = node.evaluate(upvalues);
+      if (value instanceof Double) return (double)value;
+      throw Interpreter.notANumber(user); // as in Interpreter.evaluateNumber
+    };
+  }
+
+  @Override
+  public ExprNode visitCallExpr(Expr.Call expr) {
+    return compileCall(expr, false);
+  }
+
+  // in tail position, calls of lox functions are left to the caller's trampoline and give TAIL_CALL
+  private ExprNode compileCall(Expr.Call expr, boolean tail) {
+    ExprNode callee = compile(expr.callee);
+    ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    if (expr.callee instanceof Expr.Get) return compileInvoke(expr, arguments, tail);
+
+    // calls with up to three arguments go through the fixed-arity entry points, as in Interpreter.call. a
+    // lox function called in tail position needs the array for the trampoline. compiled callables never
+    // touch the tree-walking interpreter
+    if (!tail) {
+      switch (arguments.length) {
+        case 0:
+          return upvalues -> Interpreter.checkCallable(expr, callee.evaluate(upvalues), 0).call0(null);
+        case 1: {
+          ExprNode first = arguments[0];
+          return upvalues -> {
+            Object function = callee.evaluate(upvalues);
+            Object a = first.evaluate(upvalues);
+            return Interpreter.checkCallable(expr, function, 1).call1(null, a);
+          };
+        }
+        case 2: {
+          ExprNode first = arguments[0];
+          ExprNode second = arguments[1];
+          return upvalues -> {
+            Object function = callee.evaluate(upvalues);
+            Object a = first.evaluate(upvalues);
+            Object b = second.evaluate(upvalues);
+            return Interpreter.checkCallable(expr, function, 2).call2(null, a, b);
+          };
+        }
+        case 3: {
+          ExprNode first = arguments[0];
+          ExprNode second = arguments[1];
+          ExprNode third = arguments[2];
+          return upvalues -> {
+            Object function = callee.evaluate(upvalues);
+            Object a = first.evaluate(upvalues);
+            Object b = second.evaluate(upvalues);
+            Object c = third.evaluate(upvalues);
+            return Interpreter.checkCallable(expr, function, 3).call3(null, a, b, c);
+          };
+        }
+      }
+    }
+
+    return upvalues -> {
+      Object function = callee.evaluate(upvalues);
+
+      Object[] values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].evaluate(upvalues);
+      }
+
+      LoxCallable callable = Interpreter.checkCallable(expr, function, values.length);
+
+      if (tail && callable instanceof LoxFunction) {
+        return tailCall.set((LoxFunction)callable, ((LoxFunction)callable).receiver, values);
+      }
+      return callable.call(null, values);
+    };
+  }
+
+  // obj.name(args): methods are invoked with the receiver directly instead of through a bound method
+  private ExprNode compileInvoke(Expr.Call expr, ExprNode[] arguments, boolean tail) {
+    Expr.Get get = (Expr.Get)expr.callee;
+    ExprNode object = compile(get.object);
+    Token name = get.name;
+    InlineCache cache = expr.cache;
+
+    return upvalues -> {
+      Object receiver = object.evaluate(upvalues);
+      if (!(receiver instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have properties.");
+      }
+      LoxInstance instance = (LoxInstance)receiver;
+      LoxFunction method = cache.method(instance, name);
+      Object function = method != null ? method : cache.get(instance, name);
+
+      Object[] values = new Object[arguments.length];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = arguments[i].evaluate(upvalues);
+      }
+
+      LoxCallable callable = Interpreter.checkCallable(expr, function, values.length);
+
+      if (tail && method != null) return tailCall.set(method, instance, values);
+      if (tail && callable instanceof LoxFunction) {
+        return tailCall.set((LoxFunction)callable, ((LoxFunction)callable).receiver, values);
+      }
+      if (method != null) return method.invoke(null, instance, values);
+      return callable.call(null, values);
+    };
+  }
+
+  @Override
+  public ExprNode visitGetExpr(Expr.Get expr) {
+    ExprNode object = compile(expr.object);
+    Token name = expr.name;
+    InlineCache cache = expr.cache;
+    return upvalues -> {
+      Object instance = object.evaluate(upvalues);
+      if (instance instanceof LoxInstance) {
+        return cache.get((LoxInstance)instance, name);
+      }
+      throw new RuntimeError(name, "Only instances have properties.");
+    };
+  }
+
+  @Override
+  public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression); // grouping only matters to the parser
+  }
+
+  @Override
+  public ExprNode visitLiteralExpr(Expr.Literal expr) {
+    Object value = expr.value;
+    return upvalues -> value;
+  }
+
+  @Override
+  public ExprNode visitLogicalExpr(Expr.Logical expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+    if (expr.operator.type == TokenType.OR) {
+      return upvalues -> {
+        Object value = left.evaluate(upvalues);
+        return Interpreter.isTruthy(value) ? value : right.evaluate(upvalues);
+      };
+    }
+    return upvalues -> {
+      Object value = left.evaluate(upvalues);
+      return !Interpreter.isTruthy(value) ? value : right.evaluate(upvalues);
+    };
+  }
+
+  @Override
+  public ExprNode visitSetExpr(Expr.Set expr) {
+    ExprNode object = compile(expr.object);
+    ExprNode value = compile(expr.value);
+    Token name = expr.name;
+    InlineCache cache = expr.cache;
+    return upvalues -> {
+      Object instance = object.evaluate(upvalues);
+      if (!(instance instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instances have fields.");
+      }
+      Object result = value.evaluate(upvalues);
+      cache.set((LoxInstance)instance, name, result);
+      return result;
+    };
+  }
+
+  @Override
+  public ExprNode visitSuperExpr(Expr.Super expr) {
+    int slot = expr.slot;
+    int thisSlot = expr.thisSlot;
+    boolean thisUpvalue = expr.thisUpvalue;
+    Token method = expr.method;
+    return upvalues -> {
+      LoxClass superclass = (LoxClass)read(upvalues[slot]);
+      LoxInstance object = (LoxInstance)(thisUpvalue ? read(upvalues[thisSlot]) : stack[fp + thisSlot]);
+      LoxFunction function = superclass.findMethod(method.symbol);
+      if (function == null) {
+        throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+      }
+      return function.bind(object);
+    };
+  }
+
+  @Override
+  public ExprNode visitThisExpr(Expr.This expr) {
+    int slot = expr.slot;
+    if (expr.upvalue) return upvalues -> read(upvalues[slot]);
+    return upvalues -> stack[fp + slot];
+  }
+
+  @Override
+  public ExprNode visitUnaryExpr(Expr.Unary expr) {
+    if (expr.operand == LoxType.NUMBER && expr.operator.type == TokenType.MINUS) {
+      NumberNode number = compileNumber(expr, expr);
+      return upvalues -> number.evaluate(upvalues);
+    }
+    ExprNode right = compile(expr.right);
+    Token operator = expr.operator;
+    if (operator.type == TokenType.BANG) {
+      return upvalues -> !Interpreter.isTruthy(right.evaluate(upvalues));
+    }
+    return upvalues -> {
+      Object value = right.evaluate(upvalues);
+      Interpreter.checkNumberOperand(operator, value);
+      return -(double)value;
+    };
+  }
+
+  @Override
+  public ExprNode visitVariableExpr(Expr.Variable expr) {
+    Token name = expr.name;
+    int slot = expr.slot;
+    if (expr.upvalue) return upvalues -> read(upvalues[slot]);
+    if (slot < 0) {
+      Global global = globals.cell(name.symbol);
+      return upvalues -> global.get(name);
+    }
+    return upvalues -> stack[fp + slot];
+  }
+}
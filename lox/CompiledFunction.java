@@ -0,0 +1,66 @@
+package com.sjlox.lox;
+
+// a function whose body the ClosureCompiler has already turned into a lambda tree
+class CompiledFunction extends LoxFunction {
+  private final ClosureCompiler compiler;
+  private final ClosureCompiler.StmtNode body;
+
+  CompiledFunction(ClosureCompiler compiler, Stmt.Function declaration, ClosureCompiler.StmtNode body,
+                   Upvalue[] upvalues, boolean isMethod, boolean isInitializer) {
+    this(compiler, declaration, body, upvalues, isMethod, isInitializer, null);
+  }
+
+  private CompiledFunction(ClosureCompiler compiler, Stmt.Function declaration, ClosureCompiler.StmtNode body,
+                           Upvalue[] upvalues, boolean isMethod, boolean isInitializer, LoxInstance receiver) {
+    super(declaration, upvalues, isMethod, isInitializer, receiver);
+    this.compiler = compiler;
+    this.body = body;
+  }
+
+  @Override
+  LoxFunction bind(LoxInstance instance) {
+    return new CompiledFunction(compiler, declaration, body, upvalues, isMethod, isInitializer, instance);
+  }
+
+  // like LoxFunction's, the arguments go into the frame one by one
+  @Override
+  Object invoke(Interpreter interpreter, LoxInstance receiver, int count, Object a, Object b, Object c) {
+    if (countCall()) return invoke(interpreter, receiver, arguments(count, a, b, c));
+
+    Object signal = compiler.executeFrame(this, body, receiver, count, a, b, c);
+    if (signal == ClosureCompiler.TAIL_CALL) {
+      LoxFunction.TailCall call = compiler.tailCall;
+      LoxFunction function = call.function;
+      LoxInstance callReceiver = call.receiver;
+      Object[] arguments = call.arguments;
+      call.set(null, null, null);
+      return function.invoke(interpreter, callReceiver, arguments);
+    }
+
+    Object value = signal == ClosureCompiler.RETURN ? compiler.takeReturnValue() : null;
+    return isInitializer ? receiver : value;
+  }
+
+  // a trampoline for tail calls, like LoxFunction.invoke, which runs jit-compiled code the same way
+  @Override
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    CompiledFunction function = this;
+    for (;;) {
+      Object result = compiler.runCompiled(function, arguments);
+      if (result != NOT_COMPILED) return result;
+
+      Object signal = compiler.executeFrame(function, function.body, receiver, arguments);
+      if (signal == ClosureCompiler.TAIL_CALL) {
+        LoxFunction.TailCall call = compiler.tailCall;
+        function = (CompiledFunction)call.function;
+        receiver = call.receiver;
+        arguments = call.arguments;
+        call.set(null, null, null);
+        continue;
+      }
+
+      Object value = signal == ClosureCompiler.RETURN ? compiler.takeReturnValue() : null;
+      return function.isInitializer ? receiver : value;
+    }
+  }
+}
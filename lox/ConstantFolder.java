@@ -0,0 +1,207 @@
+package com.sjlox.lox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Stack;
+
+// folds operators over literals, propagates locals that are initialized to a literal and never assigned
+// again, and drops if and while branches whose condition is a constant. globals are left alone, since
+// any function (or a later line in the prompt) may assign them
+class ConstantFolder extends AstRewriter implements Optimizer {
+  // local scopes as the resolver saw them, mapping each name to the token that declared it
+  private final Stack<Map<String, Token>> scopes = new Stack<>();
+  private final Set<Token> assigned = Collections.newSetFromMap(new IdentityHashMap<>());
+  private final Map<Token, Object> constants = new IdentityHashMap<>();
+  private boolean propagating; // false on the first walk, which only finds the assigned locals
+
+  @Override
+  public List<Stmt> optimize(List<Stmt> statements) {
+    assigned.clear();
+    constants.clear();
+
+    propagating = false;
+    rewrite(statements);
+    propagating = true;
+    return rewrite(statements);
+  }
+
+  private void beginScope() {
+    scopes.push(new HashMap<String, Token>());
+  }
+
+  private void endScope() {
+    scopes.pop();
+  }
+
+  private void declare(Token name) {
+    if (!scopes.isEmpty()) scopes.peek().put(name.lexeme, name);
+  }
+
+  // the token declaring the local a name refers to, or null for globals
+  private Token declarationOf(Token name) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Token declaration = scopes.get(i).get(name.lexeme);
+      if (declaration != null) return declaration;
+    }
+    return null;
+  }
+
+  private static Stmt empty() {
+    return new Stmt.Block(new ArrayList<Stmt>());
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Token declaration = declarationOf(expr.name);
+    if (declaration != null) assigned.add(declaration);
+    return super.visitAssignExpr(expr);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    Token declaration = declarationOf(expr.name);
+    if (propagating && declaration != null && constants.containsKey(declaration)) {
+      return new Expr.Literal(constants.get(declaration));
+    }
+    return expr;
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    return rewrite(expr.expression); // only the parser needs the parentheses
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = rewrite(expr.right);
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal)right).value;
+      if (expr.operator.type == TokenType.BANG) return new Expr.Literal(!Interpreter.isTruthy(value));
+      if (value instanceof Double) return new Expr.Literal(-(double)value);
+    }
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = rewrite(expr.left);
+    Expr right = rewrite(expr.right);
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Expr folded = fold(expr.operator, ((Expr.Literal)left).value, ((Expr.Literal)right).value);
+      if (folded != null) return folded;
+    }
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  // the value of a binary operator over two constants, or null where it would be a runtime error
+  private static Expr fold(Token operator, Object left, Object right) {
+    if (operator.type == TokenType.EQUAL_EQUAL) return new Expr.Literal(Interpreter.isEqual(left, right));
+    if (operator.type == TokenType.BANG_EQUAL) return new Expr.Literal(!Interpreter.isEqual(left, right));
+
+    if (operator.type == TokenType.PLUS && left instanceof String && right instanceof String) {
+      return new Expr.Literal((String)left + (String)right);
+    }
+    if (!(left instanceof Double && right instanceof Double)) return null;
+
+    double a = (double)left;
+    double b = (double)right;
+    switch (operator.type) {
+      case GREATER: return new Expr.Literal(a > b);
+      case GREATER_EQUAL: return new Expr.Literal(a >= b);
+      case LESS: return new Expr.Literal(a < b);
+      case LESS_EQUAL: return new Expr.Literal(a <= b);
+      case PLUS: return new Expr.Literal(a + b);
+      case MINUS: return new Expr.Literal(a - b);
+      case STAR: return new Expr.Literal(a * b);
+      case SLASH: return new Expr.Literal(a / b);
+    }
+    return null;
+  }
+
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = rewrite(expr.left);
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal)left).value);
+      boolean shortCircuits = expr.operator.type == TokenType.OR ? truthy : !truthy;
+      return shortCircuits ? left : rewrite(expr.right);
+    }
+    Expr right = rewrite(expr.right);
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    beginScope();
+    Stmt result = super.visitBlockStmt(stmt);
+    endScope();
+    return result;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    declare(stmt.name);
+    return super.visitClassStmt(stmt);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    declare(stmt.name);
+    beginScope();
+    for (Token param : stmt.params) {
+      declare(param);
+    }
+    Stmt result = super.visitFunctionStmt(stmt);
+    endScope();
+    return result;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    Stmt result = super.visitVarStmt(stmt);
+    declare(stmt.name);
+
+    Expr initializer = ((Stmt.Var)result).initializer;
+    if (propagating && !scopes.isEmpty() && !assigned.contains(stmt.name)
+        && (initializer == null || initializer instanceof Expr.Literal)) {
+      constants.put(stmt.name, initializer == null ? null : ((Expr.Literal)initializer).value);
+    }
+    return result;
+  }
+
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = rewrite(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal)condition).value)) return rewrite(stmt.thenBranch);
+      return stmt.elseBranch != null ? rewrite(stmt.elseBranch) : empty();
+    }
+
+    Stmt thenBranch = rewrite(stmt.thenBranch);
+    Stmt elseBranch = rewrite(stmt.elseBranch);
+    if (condition == stmt.condition && thenBranch == stmt.thenBranch && elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Expr condition = rewrite(stmt.condition);
+    if (condition instanceof Expr.Literal && !Interpreter.isTruthy(((Expr.Literal)condition).value)) {
+      return empty();
+    }
+
+    Stmt body = rewrite(stmt.body);
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+    return new Stmt.While(condition, body);
+  }
+}
@@ -0,0 +1,38 @@
+package com.sjlox.lox;
+
+// a while loop that LoopOptimizer found to count a local variable by a constant step towards a limit the
+// body cannot change. the tree-walker and the closure compiler keep the counter in a primitive double,
+// evaluate the limit once, and run the body with its loop-invariant expressions hoisted into temporaries.
+// so does the stackless mode for loops that make no calls, since it runs those through the tree-walker.
+// the vm and the jit run the loop as written, which means the same thing
+final class CountedLoop {
+  final int slot; // the counter, a local of the frame the loop runs in
+  final TokenType comparison; // the loop runs while counter <comparison> limit
+  final Expr limit;
+  final double step;
+  final Stmt body; // the loop body without the increment
+  final Expr[] invariants; // expressions hoisted out of body, evaluated once before the loop
+  final int[] temps; // the frame slots their values are kept in
+  final Stmt hoistedBody; // body reading the invariants from their temps, or null when nothing was hoisted
+
+  CountedLoop(int slot, TokenType comparison, Expr limit, double step, Stmt body,
+              Expr[] invariants, int[] temps, Stmt hoistedBody) {
+    this.slot = slot;
+    this.comparison = comparison;
+    this.limit = limit;
+    this.step = step;
+    this.body = body;
+    this.invariants = invariants;
+    this.temps = temps;
+    this.hoistedBody = hoistedBody;
+  }
+
+  boolean test(double counter, double limit) {
+    switch (comparison) {
+      case LESS: return counter < limit;
+      case LESS_EQUAL: return counter <= limit;
+      case GREATER: return counter > limit;
+      default: return counter >= limit;
+    }
+  }
+}
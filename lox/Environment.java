@@ -4,68 +4,43 @@ import java.util.HashMap;
 import java.util.Map;
 
 
+// the global variables. locals never get one: they live in frames on the value stack, and closures
+// reach the ones they capture through upvalues
 class Environment {
-  final Environment enclosing; //giving reference to the environment it is envlosed in
-  private final Map<String, Object> values = new HashMap<>(); // map to store bindings
-
-  Environment() {
-    enclosing = null;
-  }
-
-  Environment(Environment enclosing) {
-    this.enclosing = enclosing;
-  }
-
-  Object get(Token name) { //search for value of variable, given its na,e
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
+  private final Map<Symbol, Global> cells = new HashMap<>(); // name bindings, defined or only referred to
+
+  // the cell of a global, made undefined if the name is new. accesses keep it instead of looking it up again
+  Global cell(Symbol name) {
+    Global cell = cells.get(name);
+    if (cell == null) {
+      cell = new Global(name);
+      cells.put(name, cell);
     }
-    if (enclosing != null) return enclosing.get(name); //throw error if the variable has not been previously defined (cannot be too lax, even in lox)
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    return cell;
   }
 
-  void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
-      return;
-    }
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
-    }
-    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
-  }
-  // defines a new variable in the current environment
-  void define(String name, Object value) { //bind name to value
-    values.put(name, value);
-  }
-
-    // finds an ancestor environment at a given distance
-  Environment ancestor(int distance) {
-    Environment environment = this;
-    for (int i = 0; i < distance; i++) {
-      environment = environment.enclosing; // move up the environment chain
-    }
-    return environment;
+  Object get(Token name) { //search for value of a global variable, given its name
+    return cell(name.symbol).get(name);
   }
 
-    // retrieves a variable value at a specific distance in the environment chain
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  void assign(Token name, Object value) {
+    cell(name.symbol).assign(name, value);
   }
 
-  // assigns a new value to an existing variable at a specific distance
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  // defines a new global variable
+  void define(Symbol name, Object value) { //bind name to value
+    cell(name).define(value);
   }
 
-  // returns a string representation of the environment, including parent environments
+  // returns a string representation of the environment
   @Override
   public String toString() {
-    String result = values.toString();
-    if (enclosing != null) {
-      result += " -> " + enclosing.toString();
+    StringBuilder builder = new StringBuilder("{");
+    for (Global cell : cells.values()) {
+      if (!cell.defined) continue;
+      if (builder.length() > 1) builder.append(", ");
+      builder.append(cell.name).append('=').append(cell.value);
     }
-    return result;
+    return builder.append('}').toString();
   }
 }
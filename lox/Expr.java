@@ -18,6 +18,8 @@ abstract class Expr {
     R visitVariableExpr(Variable expr);
   }
 
+  int callFree;
+
   // Nested Expr classes here...
 //> expr-assign
   static class Assign extends Expr {
@@ -33,6 +35,10 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int slot = -1;
+    boolean upvalue;
+    Global global;
   }
 //< expr-assign
 //> expr-binary
@@ -51,6 +57,9 @@ abstract class Expr {
     final Expr left;
     final Token operator;
     final Expr right;
+
+    int specialization;
+    LoxType operands = LoxType.ANY;
   }
 //< expr-binary
 //> expr-call
@@ -69,6 +78,12 @@ abstract class Expr {
     final Expr callee;
     final Token paren;
     final List<Expr> arguments;
+
+    InlineCache cache = new InlineCache();
+    LoxCallable checked;
+    Stmt.Function target;
+    int targetCalls;
+    Expr inlined;
   }
 //< expr-call
 //> expr-get
@@ -85,6 +100,8 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    InlineCache cache = new InlineCache();
   }
 //< expr-get
 //> expr-grouping
@@ -149,6 +166,8 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    InlineCache cache = new InlineCache();
   }
 //< expr-set
 //> expr-super
@@ -165,6 +184,10 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    int slot;
+    int thisSlot;
+    boolean thisUpvalue;
   }
 //< expr-super
 //> expr-this
@@ -179,6 +202,9 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    int slot = -1;
+    boolean upvalue;
   }
 //< expr-this
 //> expr-unary
@@ -195,6 +221,9 @@ abstract class Expr {
 
     final Token operator;
     final Expr right;
+
+    int specialization;
+    LoxType operand = LoxType.ANY;
   }
 //< expr-unary
 //> expr-variable
@@ -209,6 +238,10 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int slot = -1;
+    boolean upvalue;
+    Global global;
   }
 //< expr-variable
 
@@ -0,0 +1,30 @@
+package com.sjlox.lox;
+
+// the cell a global variable lives in. a name gets its cell the first time anything refers to it, defined
+// or not, and keeps it for good: the engines link each access to the cell once and skip the lookup by name
+// after that. a cell that has not been defined yet still fails as an undefined variable, so functions can
+// refer to globals declared after them
+final class Global {
+  final Symbol name;
+  Object value;
+  boolean defined;
+
+  Global(Symbol name) {
+    this.name = name;
+  }
+
+  Object get(Token name) {
+    if (defined) return value;
+    throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+  }
+
+  void assign(Token name, Object value) {
+    if (!defined) throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
+    this.value = value;
+  }
+
+  void define(Object value) {
+    this.value = value;
+    defined = true;
+  }
+}
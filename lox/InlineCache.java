@@ -0,0 +1,96 @@
+package com.sjlox.lox;
+
+// per-site cache of property lookups, keyed by the receiver's shape. since every class has its own root
+// shape, a shape also fixes the class, so both field slots and methods can be cached against it.
+// up to LIMIT shapes are remembered (polymorphic); a site that sees more goes megamorphic and stops caching
+final class InlineCache {
+  private static final int LIMIT = 4;
+
+  private final Shape[] shapes = new Shape[LIMIT];
+  private final int[] slots = new int[LIMIT]; // field slot, or -1 when the name is a method
+  private final LoxFunction[] methods = new LoxFunction[LIMIT];
+  private final Shape[] transitions = new Shape[LIMIT]; // for stores that add the field: the shape after
+  private int count = 0;
+  private boolean megamorphic = false;
+
+  private int find(Shape shape) {
+    for (int i = 0; i < count; i++) {
+      if (shapes[i] == shape) return i;
+    }
+    return -1;
+  }
+
+  private int add(Shape shape) {
+    if (count == LIMIT) {
+      megamorphic = true;
+      return -1;
+    }
+    shapes[count] = shape;
+    return count++;
+  }
+
+  // the entry for instance.name, filling one in on a miss; -1 if the site is megamorphic or name is undefined
+  private int lookup(LoxInstance instance, Token name) {
+    Shape shape = instance.shape();
+    int entry = find(shape);
+    if (entry >= 0 || megamorphic) return entry;
+
+    int slot = shape.slotOf(name.symbol);
+    LoxFunction method = slot >= 0 ? null : instance.klass().findMethod(name.symbol);
+    if (slot < 0 && method == null) return -1;
+    entry = add(shape);
+    if (entry < 0) return -1;
+    slots[entry] = slot;
+    methods[entry] = method;
+    return entry;
+  }
+
+  // instance.name, for Expr.Get and method call sites
+  Object get(LoxInstance instance, Token name) {
+    int entry = lookup(instance, name);
+    if (entry < 0) return instance.get(name); // also reports undefined properties
+    if (slots[entry] >= 0) return instance.field(slots[entry]);
+    return methods[entry].bind(instance);
+  }
+
+  // the unbound method instance.name calls, or null when name is a field (or undefined), for call sites
+  // that pass the receiver straight to the method
+  LoxFunction method(LoxInstance instance, Token name) {
+    int entry = lookup(instance, name);
+    if (entry >= 0) return methods[entry];
+    if (instance.shape().slotOf(name.symbol) >= 0) return null;
+    return instance.klass().findMethod(name.symbol);
+  }
+
+  // instance.name = value, for Expr.Set
+  void set(LoxInstance instance, Token name, Object value) {
+    int entry = find(instance.shape());
+    if (entry < 0) {
+      if (megamorphic) {
+        instance.set(name, value);
+        return;
+      }
+
+      Shape shape = instance.shape();
+      int slot = shape.slotOf(name.symbol);
+      Shape next = null;
+      if (slot < 0) {
+        next = shape.withField(name.symbol);
+        slot = next.size - 1;
+      }
+      entry = add(shape);
+      if (entry < 0) {
+        instance.set(name, value);
+        return;
+      }
+      slots[entry] = slot;
+      transitions[entry] = next;
+    }
+
+    if (transitions[entry] == null) {
+      instance.setField(slots[entry], value);
+    } else {
+      instance.addField(transitions[entry], slots[entry], value);
+    }
+  }
+}
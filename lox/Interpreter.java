@@ -1,6 +1,6 @@
 package com.sjlox.lox;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,24 +8,90 @@ import java.util.Map;
 import com.sjlox.lox.Environment;
 
 import com.sjlox.lox.Lox;
-import com.sjlox.lox.Stmt.Return;
 
 // interpreter class that evaluates expressions and executes statements
-class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Object> {
   
   // global environment (stores variables and functions)
   final Environment globals = new Environment();
-  private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+
+  // statements complete with null to carry on with the next one, or one of these to unwind. a return
+  // leaves its value in returnValue for the call it unwinds to, so no exception is ever thrown
+  static final Object BREAK = new Object();
+  static final Object RETURN = new Object();
+  private Object returnValue;
+
+  // signal of a return whose value is a call of a lox function: the call is left in tailCall for the
+  // trampoline in LoxFunction.invoke, which makes it once the returning frame is gone
+  static final Object TAIL_CALL = new Object();
+  final LoxFunction.TailCall tailCall = new LoxFunction.TailCall();
+
+  // specialization of Binary and Unary nodes, decided when they first run: numeric nodes pass their
+  // operands around as unboxed doubles and only box the final result; generic ones handle any value
+  static final int UNINITIALIZED = 0;
+  static final int NUMERIC = 1;
+  static final int GENERIC = 2;
+
+  // value stack: the locals of each call live in a frame of slots starting at fp, with the top-level
+  // code's frame at the bottom. variables captured by closures are reached through upvalues
+  private Object[] stack = new Object[256];
+  private int fp = 0;
+  private int sp = 0;
+  private Upvalue[] upvalues = null; // of the closure running, none at the top level
+  private Upvalue openUpvalues = null;
+
+  // explicit-stack mode: a task is a statement or expression part way through, a statement list, or the
+  // frame of a running lox function. expressions leave their results on the values stack, statements
+  // their completion signal in completion. subtrees that make no calls are still run recursively
+  static final int DEFAULT_MAX_FRAMES = 1000000;
+  private Task[] tasks = new Task[64];
+  private int tp = 0;
+  private Object[] values = new Object[64];
+  private int vp = 0;
+  private Object completion = null;
+  private int frames = 0;
+  private int maxFrames = DEFAULT_MAX_FRAMES;
+
+  // task objects are reused as the stack grows and shrinks; what the fields hold depends on the node
+  private static final class Task {
+    Object node;
+    int state; // progress through the node; for a frame, the caller's fp
+    int index; // next statement or argument
+    Object value; // a call's receiver, a switch's value, a frame's receiver
+    Object saved; // a call's callee, a frame's caller upvalues
+    boolean tail; // a call made by a return statement
+  }
+
+  // thrown by evaluateDouble when an expression produced something other than a number
+  private static class UnexpectedValue extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final Object value;
+
+    UnexpectedValue(Object value) {
+      super(null, null, false, false);
+      this.value = value;
+    }
+  }
 
   // constructor initializes native functions
   Interpreter() {
-    globals.define("clock", new LoxCallable() {
+    defineNatives(globals);
+  }
+
+  // native functions every execution engine provides
+  static void defineNatives(Environment globals) {
+    globals.define(Symbol.intern("clock"), new LoxCallable() {
       @Override
       public int arity() { return 0; }
 
       @Override
-      public Object call(Interpreter interpreter, List<Object> arguments) {
+      public Object call(Interpreter interpreter, Object[] arguments) {
+        return call0(interpreter);
+      }
+
+      @Override
+      public Object call0(Interpreter interpreter) {
         return (double)System.currentTimeMillis() / 1000.0;
       }
 
@@ -34,14 +100,45 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     });
   }
   
-  // interpret a list of statements
-  void interpret(List<Stmt> statements) {
+  // interpret a list of statements, giving the top-level code a frame of frameSize slots
+  void interpret(List<Stmt> statements, int frameSize) {
+    growStack(frameSize);
+    sp = frameSize;
     try {
       for (Stmt statement : statements) {
         execute(statement);
       }
     } catch (RuntimeError error) {
       Lox.runtimeError(error);
+    } finally {
+      closeUpvalues(0);
+      fp = sp = 0;
+      upvalues = null;
+    }
+  }
+
+  // interpret without nesting java calls for lox calls: every call frame and pending evaluation lives on
+  // the interpreter's own task stack, so recursion depth is bounded by maxFrames rather than the thread stack
+  void interpretStackless(List<Stmt> statements, int frameSize, int maxFrames) {
+    growStack(frameSize);
+    sp = frameSize;
+    this.maxFrames = maxFrames;
+    try {
+      pushTask(statements);
+      while (tp > 0) {
+        step(tasks[tp - 1]);
+      }
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    } finally {
+      closeUpvalues(0);
+      fp = sp = 0;
+      upvalues = null;
+      Arrays.fill(values, 0, vp, null);
+      while (tp > 0) popTask();
+      vp = 0;
+      frames = 0;
+      completion = null;
     }
   }
 
@@ -49,73 +146,191 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return expr.accept(this);
   }
 
-  private void execute(Stmt stmt) {
-    stmt.accept(this);
+  private Object execute(Stmt stmt) {
+    return stmt.accept(this);
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  // hands the value of the last return statement to the call that got its signal
+  Object takeReturnValue() {
+    Object value = returnValue;
+    returnValue = null;
+    return value;
   }
 
-  // execute a block of statements within a new environment
-  void executeBlock(List<Stmt> statements, Environment environment) {
-    Environment previous = this.environment;
-    try {
-      this.environment = environment;
-      for (Stmt statement : statements) {
-        execute(statement);
-      }
-    } finally {
-      this.environment = previous;
+  // binds a declared name: globals by name, locals in the frame slot the resolver gave them
+  private void declare(int slot, Token name, Object value) {
+    if (slot >= 0) {
+      stack[fp + slot] = value;
+    } else {
+      globals.define(name.symbol, value);
     }
   }
 
-  @Override
-  public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
+  // execute statements in order, stopping at the first break or return
+  private Object executeStatements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      Object signal = execute(statement);
+      if (signal != null) return signal;
+    }
     return null;
   }
 
   @Override
-  public Void visitExpressionStmt(Stmt.Expression stmt) {
+  public Object visitBlockStmt(Stmt.Block stmt) {
+    Object signal = executeStatements(stmt.statements);
+    // closures made in the block keep its captured locals, fresh ones each time a loop runs it
+    if (stmt.closeFrom >= 0) closeUpvalues(fp + stmt.closeFrom);
+    return signal;
+  }
+
+  @Override
+  public Object visitExpressionStmt(Stmt.Expression stmt) {
     evaluate(stmt.expression);
     return null;
   }
 
   @Override
-  public Void visitPrintStmt(Stmt.Print stmt) {
+  public Object visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
     System.out.println(stringify(value));
     return null;
   }
 
   @Override
-  public Void visitVarStmt(Stmt.Var stmt) {
+  public Object visitVarStmt(Stmt.Var stmt) {
     Object value = null;
     if (stmt.initializer != null) {
       value = evaluate(stmt.initializer);
     }
-    environment.define(stmt.name.lexeme, value);
+    declare(stmt.slot, stmt.name, value);
     return null;
   }
 
+  // runs a function body in a new stack frame holding the receiver (for methods) and the arguments
+  Object executeFrame(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+    int callerFp = fp;
+    Upvalue[] callerUpvalues = upvalues;
+    growStack(function.declaration.frameSize);
+    fp = sp;
+    sp += function.declaration.frameSize;
+    upvalues = function.upvalues;
+    try {
+      int slot = fp;
+      if (function.isMethod) stack[slot++] = receiver;
+      for (Object argument : arguments) {
+        stack[slot++] = argument;
+      }
+      return executeStatements(function.declaration.body);
+    } finally {
+      closeUpvalues(fp);
+      sp = fp;
+      fp = callerFp;
+      upvalues = callerUpvalues;
+    }
+  }
+
+  // executeFrame for up to three arguments passed one by one, so no array is made for them
+  Object executeFrame(LoxFunction function, LoxInstance receiver, int count, Object a, Object b, Object c) {
+    int callerFp = fp;
+    Upvalue[] callerUpvalues = upvalues;
+    growStack(function.declaration.frameSize);
+    fp = sp;
+    sp += function.declaration.frameSize;
+    upvalues = function.upvalues;
+    try {
+      int slot = fp;
+      if (function.isMethod) stack[slot++] = receiver;
+      if (count > 0) stack[slot++] = a;
+      if (count > 1) stack[slot++] = b;
+      if (count > 2) stack[slot] = c;
+      return executeStatements(function.declaration.body);
+    } finally {
+      closeUpvalues(fp);
+      sp = fp;
+      fp = callerFp;
+      upvalues = callerUpvalues;
+    }
+  }
+
+  private void growStack(int size) {
+    if (sp + size > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + size));
+    }
+  }
+
+  // the upvalues of a new closure, made from the current frame's slots and upvalues as the resolver found
+  private Upvalue[] capture(int[] captures) {
+    Upvalue[] captured = new Upvalue[captures.length];
+    for (int i = 0; i < captures.length; i++) {
+      int capture = captures[i];
+      captured[i] = capture >= 0 ? captureUpvalue(fp + capture) : upvalues[~capture];
+    }
+    return captured;
+  }
+
+  // closures capturing the same variable share one upvalue while it is on the stack
+  private Upvalue captureUpvalue(int slot) {
+    Upvalue previous = null;
+    Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    Upvalue created = new Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  // moves every captured variable at or above the given stack slot off the stack
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+
+  // see LoxFunction.runCompiled
+  Object runCompiled(LoxFunction function, Object[] arguments) {
+    return function.runCompiled(globals, stack, arguments, true);
+  }
+
+  Object read(Upvalue upvalue) {
+    return upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+  }
+
+  private void write(Upvalue upvalue, Object value) {
+    if (upvalue.slot >= 0) {
+      stack[upvalue.slot] = value;
+    } else {
+      upvalue.closed = value;
+    }
+  }
+
   @Override
-  public Void visitIfStmt(Stmt.If stmt) {
+  public Object visitIfStmt(Stmt.If stmt) {
     if (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.thenBranch);
+      return execute(stmt.thenBranch);
     } else if (stmt.elseBranch != null) {
-      execute(stmt.elseBranch);
+      return execute(stmt.elseBranch);
     }
     return null;
   }
 
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-      int distance = locals.get(expr);
-      LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
+      LoxClass superclass = (LoxClass) read(upvalues[expr.slot]);
 
-      LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
-      LoxFunction method = superclass.findMethod(expr.method.lexeme);
+      LoxInstance object = (LoxInstance) (expr.thisUpvalue ? read(upvalues[expr.thisSlot]) : stack[fp + expr.thisSlot]);
+      LoxFunction method = superclass.findMethod(expr.method.symbol);
 
       if (method == null) {
           throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
@@ -127,12 +342,56 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   
 
   @Override
-  public Void visitWhileStmt(Stmt.While stmt) {
+  public Object visitWhileStmt(Stmt.While stmt) {
+    CountedLoop loop = stmt.counted;
+    if (loop != null) {
+      Object counter = stack[fp + loop.slot];
+      Object limit = evaluate(loop.limit);
+      if (counter instanceof Double && limit instanceof Double) {
+        return executeCounted(loop, (double)counter, (double)limit);
+      }
+    }
+
     while (isTruthy(evaluate(stmt.condition))) {
-      execute(stmt.body);
+      Object signal = execute(stmt.body);
+      if (signal == BREAK) break;
+      if (signal != null) return signal;
+    }
+    return null;
+  }
+
+  // the counter lives in a local double and is only stored to its slot for the body to read. the limit is
+  // invariant, so it is evaluated once
+  private Object executeCounted(CountedLoop loop, double counter, double limit) {
+    Stmt body = hoistInvariants(loop);
+    while (loop.test(counter, limit)) {
+      stack[fp + loop.slot] = counter;
+      Object signal = execute(body);
+      if (signal == BREAK) break;
+      if (signal != null) return signal;
+      counter += loop.step;
     }
+    stack[fp + loop.slot] = counter;
     return null;
   }
+
+  // evaluates the hoisted expressions into their slots and returns the body reading them. an expression
+  // the body might never reach may fail here, and then the loop runs its original body instead. they are
+  // pure and carry no operand proofs (LoopOptimizer hoists unproven copies), so every operator checks its
+  // operands and a failure can only be a RuntimeError
+  private Stmt hoistInvariants(CountedLoop loop) {
+    if (loop.hoistedBody == null) return loop.body;
+    try {
+      for (int i = 0; i < loop.invariants.length; i++) {
+        Object value = evaluate(loop.invariants[i]);
+        stack[fp + loop.temps[i]] = value;
+      }
+    } catch (RuntimeError error) {
+      return loop.body;
+    }
+    return loop.hoistedBody;
+  }
+
   @Override
   public Object visitSetExpr(Expr.Set expr) {
       Object object = evaluate(expr.object);
@@ -141,14 +400,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
   
       Object value = evaluate(expr.value);
-      ((LoxInstance) object).set(expr.name, value);
+      expr.cache.set((LoxInstance) object, expr.name, value);
       return value;
   }
   
   //switch statement handling: NEW FEATURE
   @Override
-  public Void visitSwitchStmt(Stmt.Switch stmt) {
+  public Object visitSwitchStmt(Stmt.Switch stmt) {
     Object switchValue = evaluate(stmt.condition);
+
+    // constant cases: jump straight to the first match and fall through from there
+    if (stmt.jumpTable != null) {
+        int first = stmt.jumpTable.lookup(switchValue);
+        if (first < 0) {
+            if (stmt.defaultCase == null) return null;
+            Object signal = executeCaseStatements(stmt.defaultCase.statements);
+            return signal == BREAK ? null : signal;
+        }
+        for (int i = first; i < stmt.cases.size(); i++) {
+            Object signal = executeCaseStatements(stmt.cases.get(i).statements);
+            if (signal == BREAK) return null;
+            if (signal != null) return signal;
+        }
+        return null;
+    }
+
     boolean caseMatched = false;
 
     for (Stmt.Case caseStmt : stmt.cases) {
@@ -157,26 +433,31 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         // if a case matches or a previous case has matched (for fall-through)
         if (caseMatched || isEqual(switchValue, caseValue)) {
             caseMatched = true; // from now on, execute statements in fall-through mode
-            executeCaseStatements(caseStmt.statements);
+            Object signal = executeCaseStatements(caseStmt.statements);
+            if (signal == BREAK) return null; // break leaves the switch
+            if (signal != null) return signal;
         }
     }
 
     // if no case matched, execute the default case if it exists
     if (!caseMatched && stmt.defaultCase != null) {
-        executeCaseStatements(stmt.defaultCase.statements);
+        Object signal = executeCaseStatements(stmt.defaultCase.statements);
+        if (signal != BREAK) return signal;
     }
 
     return null;
 }
 
-private void executeCaseStatements(List<Stmt> statements) {
+private Object executeCaseStatements(List<Stmt> statements) {
     for (Stmt stmt : statements) {
-        execute(stmt);
+        Object signal = execute(stmt);
+        if (signal != null) return signal;
     }
+    return null;
 }
 
 @Override
-public Void visitClassStmt(Stmt.Class stmt) {
+public Object visitClassStmt(Stmt.Class stmt) {
     Object superclass = null;
     if (stmt.superclass != null) {
         superclass = evaluate(stmt.superclass);
@@ -185,138 +466,436 @@ public Void visitClassStmt(Stmt.Class stmt) {
         }
     }
 
-    environment.define(stmt.name.lexeme, null);
-
     if (stmt.superclass != null) {
-        environment = new Environment(environment);
-        environment.define("super", superclass);
+        stack[fp + stmt.superSlot] = superclass;
     }
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
-        LoxFunction function = new LoxFunction(method, environment, method.name.lexeme.equals("init"));
-        methods.put(method.name.lexeme, function);
+        LoxFunction function = new LoxFunction(method, capture(method.captures), true, method.name.symbol == Symbol.INIT);
+        methods.put(method.name.symbol, function);
     }
 
     LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass)superclass, methods);
 
     if (superclass != null) {
-        environment = environment.enclosing;
+        closeUpvalues(fp + stmt.superSlot); // the methods keep 'super'
     }
 
-    environment.assign(stmt.name, klass);
+    // methods only look the class up when called, so it can be bound once it is complete
+    declare(stmt.slot, stmt.name, klass);
     return null;
 }
 
 @Override
-public Void visitCaseStmt(Stmt.Case stmt) {
-    executeCaseStatements(stmt.statements);
-    return null;
+public Object visitCaseStmt(Stmt.Case stmt) {
+    return executeCaseStatements(stmt.statements);
 }
 
 @Override
-public Void visitFunctionStmt(Stmt.Function stmt) {
-    LoxFunction function = new LoxFunction(stmt, environment, false);
-    environment.define(stmt.name.lexeme, function);
+public Object visitFunctionStmt(Stmt.Function stmt) {
+    LoxFunction function = new LoxFunction(stmt, capture(stmt.captures), false, false);
+    declare(stmt.slot, stmt.name, function);
     return null;
 }
 
 @Override
-public Void visitReturnStmt(Stmt.Return stmt) {
+public Object visitReturnStmt(Stmt.Return stmt) {
     Object value = null;
-    if (stmt.value != null) {
+    if (stmt.value instanceof Expr.Call) {
+        value = call((Expr.Call)stmt.value, true);
+        if (value == TAIL_CALL) return TAIL_CALL;
+    } else if (stmt.value != null) {
         value = evaluate(stmt.value);
     }
-    throw new Return(stmt.keyword, stmt.value);
+    returnValue = value;
+    return RETURN;
 }
 
-private void checkNumberOperand(Token operator, Object operand) {
+static void checkNumberOperand(Token operator, Object operand) {
   if (operand instanceof Double) return;
   throw new RuntimeError(operator, "Operand must be a number.");
 }
 
-private void checkNumberOperands(Token operator, Object left, Object right) {
+static void checkNumberOperands(Token operator, Object left, Object right) {
   if (left instanceof Double && right instanceof Double) return;
   throw new RuntimeError(operator, "Operands must be numbers.");
 }
 
-private static class BreakException extends RuntimeException {
-  BreakException() {
-      super(null, null, false, false);
-  }
-}
-
 @Override
-public Void visitBreakStmt(Stmt.Break stmt) {
-    throw new BreakException();
+public Object visitBreakStmt(Stmt.Break stmt) {
+    return BREAK;
 }
 
 @Override
 public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    return call(expr, false);
+}
+
+// a call in tail position leaves lox functions to the caller's trampoline and returns TAIL_CALL
+private Object call(Expr.Call expr, boolean tail) {
+    Object callee;
+    if (expr.callee instanceof Expr.Get) {
+        // method call site: the call's own cache, keyed by the receiver's shape, does the lookup
+        Expr.Get get = (Expr.Get)expr.callee;
+        Object object = evaluate(get.object);
+        if (object instanceof LoxInstance) {
+            LoxFunction method = expr.cache.method((LoxInstance)object, get.name);
+            if (method != null) {
+                if (expr.inlined != null && isInlined(expr, method)) return inline(expr, method, (LoxInstance)object);
+                // the receiver goes straight into the method's frame; no bound method is made
+                Object[] arguments = evaluateArguments(expr);
+                checkCallable(expr, method, arguments.length);
+                profile(expr, method);
+                if (tail) return tailCall.set(method, (LoxInstance)object, arguments);
+                return method.invoke(this, (LoxInstance)object, arguments);
+            }
+        }
+        callee = getProperty(object, get.name, expr.cache);
+    } else {
+        callee = evaluate(expr.callee);
+    }
 
-    List<Object> arguments = new ArrayList<>();
+    if (expr.inlined != null && callee instanceof LoxFunction && isInlined(expr, (LoxFunction)callee)) {
+        return inline(expr, (LoxFunction)callee, ((LoxFunction)callee).receiver);
+    }
+
+    // calls with up to three arguments go through the fixed-arity entry points, which write them straight
+    // into the callee's frame. a lox function called in tail position needs the array for the trampoline
+    if (!tail || !(callee instanceof LoxFunction)) {
+        List<Expr> arguments = expr.arguments;
+        switch (arguments.size()) {
+            case 0:
+                return checkFixed(expr, callee, 0).call0(this);
+            case 1: {
+                Object a = evaluate(arguments.get(0));
+                return checkFixed(expr, callee, 1).call1(this, a);
+            }
+            case 2: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                return checkFixed(expr, callee, 2).call2(this, a, b);
+            }
+            case 3: {
+                Object a = evaluate(arguments.get(0));
+                Object b = evaluate(arguments.get(1));
+                Object c = evaluate(arguments.get(2));
+                return checkFixed(expr, callee, 3).call3(this, a, b, c);
+            }
+        }
+    }
+
+    Object[] arguments = evaluateArguments(expr);
+    LoxCallable function = checkCallable(expr, callee, arguments.length);
+    if (function instanceof LoxFunction) profile(expr, (LoxFunction)function);
+    if (tail && function instanceof LoxFunction) {
+        return tailCall.set((LoxFunction)function, ((LoxFunction)function).receiver, arguments);
+    }
+    return function.call(this, arguments);
+}
+
+// a function whose body is a single return statement can be inlined: once a call site has called it
+// INLINE_THRESHOLD times in a row, the site evaluates the returned expression itself instead of calling.
+// the inlined expression is guarded by the function's declaration; another callee deoptimizes the site
+// back to normal calls and starts profiling it again, so a site whose callee changes for good gets to
+// inline the new one. a site that sees a second callee while profiling is left to normal calls for good.
+// a function returning a call is left alone: that call is a tail call, and evaluating it inline would run
+// it outside the trampoline. only this engine inlines; the others never look at the profile
+private static final int INLINE_THRESHOLD = 8;
+
+private static void profile(Expr.Call expr, LoxFunction function) {
+    if (expr.targetCalls < 0) return; // the site is not inlining
+    if (expr.target != function.declaration) {
+        if (expr.target != null) {
+            expr.targetCalls = -1; // polymorphic
+            return;
+        }
+        expr.target = function.declaration;
+    }
+    if (++expr.targetCalls < INLINE_THRESHOLD) return;
+
+    List<Stmt> body = function.declaration.body;
+    if (!function.isInitializer && body.size() == 1 && body.get(0) instanceof Stmt.Return) {
+        Expr value = ((Stmt.Return)body.get(0)).value;
+        if (value != null && !(value instanceof Expr.Call)) expr.inlined = value;
+    }
+    expr.targetCalls = -1; // decided either way
+}
+
+// the guard of an inlined call. a miss deoptimizes the site and profiles it again from this callee on
+private static boolean isInlined(Expr.Call expr, LoxFunction function) {
+    if (function.declaration == expr.target) return true;
+    expr.inlined = null;
+    expr.target = null;
+    expr.targetCalls = 0;
+    return false;
+}
+
+// evaluates the inlined expression in a bare frame holding the receiver and the arguments. an expression
+// declares nothing and makes no closures, so none of the frame bookkeeping of executeFrame is needed, and
+// the arity was checked while the site was profiled
+private Object inline(Expr.Call expr, LoxFunction function, LoxInstance receiver) {
+    int callerFp = fp;
+    Upvalue[] callerUpvalues = upvalues;
+    int base = sp;
+    growStack(function.declaration.frameSize);
+    sp += function.declaration.frameSize;
+
+    int slot = base;
+    if (function.isMethod) stack[slot++] = receiver;
     for (Expr argument : expr.arguments) {
-        arguments.add(evaluate(argument));
+        Object value = evaluate(argument); // may grow the stack
+        stack[slot++] = value;
     }
 
-    if (!(callee instanceof LoxCallable)) {
-        throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+    fp = base;
+    upvalues = function.upvalues;
+    try {
+        return evaluate(expr.inlined);
+    } finally {
+        fp = callerFp;
+        upvalues = callerUpvalues;
+        sp = base;
     }
+}
 
-    LoxCallable function = (LoxCallable)callee;
+// checkCallable for the fixed-arity entry points, profiling lox functions for inlining as the array path does
+private static LoxCallable checkFixed(Expr.Call expr, Object callee, int count) {
+    LoxCallable function = checkCallable(expr, callee, count);
+    if (function instanceof LoxFunction) profile(expr, (LoxFunction)function);
+    return function;
+}
 
-    if (arguments.size() != function.arity()) {
-        throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+private Object[] evaluateArguments(Expr.Call expr) {
+    Object[] arguments = new Object[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = evaluate(expr.arguments.get(i));
     }
+    return arguments;
+}
 
-    return function.call(this, arguments);
+// the callee of a call site passing count arguments, once it is known to be callable with them. a
+// callable's arity never changes, so the site remembers the last one that passed and skips the checks
+static LoxCallable checkCallable(Expr.Call expr, Object callee, int count) {
+    if (callee != null && callee == expr.checked) return expr.checked; // the cache starts out null, as nil does
+    if (!(callee instanceof LoxCallable)) {
+        throw new RuntimeError(expr.paren, "Can only call functions and classes.");
+    }
+    LoxCallable function = (LoxCallable)callee;
+    if (count != function.arity()) {
+        throw new RuntimeError(expr.paren, "Expected " + function.arity() + " arguments but got " + count + ".");
+    }
+    expr.checked = function;
+    return function;
 }
 
 @Override
-public Void visitDefaultStmt(Stmt.Default stmt) {
-    executeCaseStatements(stmt.statements);
-    return null;
+public Object visitDefaultStmt(Stmt.Default stmt) {
+    return executeCaseStatements(stmt.statements);
 }
 
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
-    Object value = evaluate(expr.value);
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
+    return assign(expr, evaluate(expr.value));
+  }
+
+  private Object assign(Expr.Assign expr, Object value) {
+    if (expr.upvalue) {
+      write(upvalues[expr.slot], value);
+    } else if (expr.slot >= 0) {
+      stack[fp + expr.slot] = value;
     } else {
-      globals.assign(expr.name, value);
+      Global global = expr.global;
+      if (global == null) global = expr.global = globals.cell(expr.name.symbol);
+      global.assign(expr.name, value);
     }
     return value;
   }
 
   @Override
   public Object visitBinaryExpr(Expr.Binary expr) {
+    TokenType type = expr.operator.type;
+    if (expr.operands == LoxType.NUMBER && type != TokenType.EQUAL_EQUAL && type != TokenType.BANG_EQUAL) {
+      double left = evaluateNumber(expr.left, expr);
+      double right = evaluateNumber(expr.right, expr);
+      switch (type) {
+        case GREATER: return left > right;
+        case GREATER_EQUAL: return left >= right;
+        case LESS: return left < right;
+        case LESS_EQUAL: return left <= right;
+        default: return arithmetic(type, left, right);
+      }
+    }
+    if (expr.operands == LoxType.STRING && type == TokenType.PLUS) {
+      Object left = evaluate(expr.left);
+      Object right = evaluate(expr.right);
+      if (left instanceof CharSequence && right instanceof CharSequence) {
+        return LoxString.concat((CharSequence)left, (CharSequence)right);
+      }
+      return binary(expr.operator, left, right); // the proof did not hold: fail as usual
+    }
+
+    if (expr.specialization == NUMERIC) {
+      try {
+        double left = evaluateDouble(expr.left);
+        double right;
+        try {
+          right = evaluateDouble(expr.right);
+        } catch (UnexpectedValue unexpected) {
+          return despecialize(expr, left, unexpected.value);
+        }
+        switch (expr.operator.type) {
+          case GREATER: return left > right;
+          case GREATER_EQUAL: return left >= right;
+          case LESS: return left < right;
+          case LESS_EQUAL: return left <= right;
+          default: return arithmetic(expr.operator.type, left, right);
+        }
+      } catch (UnexpectedValue unexpected) {
+        return despecialize(expr, unexpected.value, evaluate(expr.right));
+      }
+    }
+
     Object left = evaluate(expr.left);
     Object right = evaluate(expr.right);
-    switch (expr.operator.type) {
+    if (expr.specialization == UNINITIALIZED) {
+      boolean numeric = left instanceof Double && right instanceof Double
+          && type != TokenType.EQUAL_EQUAL && type != TokenType.BANG_EQUAL;
+      expr.specialization = numeric ? NUMERIC : GENERIC;
+    }
+    return binary(expr.operator, left, right);
+  }
+
+  // a numeric node met a value that is not a number: from now on it stays generic
+  private Object despecialize(Expr.Binary expr, Object left, Object right) {
+    expr.specialization = GENERIC;
+    return binary(expr.operator, left, right);
+  }
+
+  private Object binary(Token operator, Object left, Object right) {
+    switch (operator.type) {
       case BANG_EQUAL: return !isEqual(left, right);
       case EQUAL_EQUAL: return isEqual(left, right);
-      case GREATER: return (double)left > (double)right;
-      case GREATER_EQUAL: return (double)left >= (double)right;
-      case LESS: return (double)left < (double)right;
-      case LESS_EQUAL: return (double)left <= (double)right;
-      case MINUS: return (double)left - (double)right;
+      case GREATER:
+        checkNumberOperands(operator, left, right);
+        return (double)left > (double)right;
+      case GREATER_EQUAL:
+        checkNumberOperands(operator, left, right);
+        return (double)left >= (double)right;
+      case LESS:
+        checkNumberOperands(operator, left, right);
+        return (double)left < (double)right;
+      case LESS_EQUAL:
+        checkNumberOperands(operator, left, right);
+        return (double)left <= (double)right;
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
           return (double)left + (double)right;
         }
-        if (left instanceof String && right instanceof String) {
-          return (String)left + (String)right;
+        if (left instanceof CharSequence && right instanceof CharSequence) {
+          return LoxString.concat((CharSequence)left, (CharSequence)right);
         }
-        throw new RuntimeError(expr.operator, "operands must be of same type.");
-      case SLASH: return (double)left / (double)right;
-      case STAR: return (double)left * (double)right;
+        throw new RuntimeError(operator, "operands must be of same type.");
+      case MINUS:
+      case SLASH:
+      case STAR:
+        checkNumberOperands(operator, left, right);
+        return arithmetic(operator.type, (double)left, (double)right);
     }
     return null;
   }
 
+  private static double arithmetic(TokenType operator, double left, double right) {
+    switch (operator) {
+      case PLUS: return left + right;
+      case MINUS: return left - right;
+      case SLASH: return left / right;
+      default: return left * right;
+    }
+  }
+
+  // evaluates an expression that has so far produced numbers without boxing intermediate results;
+  // anything else comes back boxed in UnexpectedValue
+  private double evaluateDouble(Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      TokenType type = binary.operator.type;
+      if (binary.operands == LoxType.NUMBER && (type == TokenType.PLUS || type == TokenType.MINUS
+          || type == TokenType.STAR || type == TokenType.SLASH)) {
+        return evaluateNumber(binary, binary);
+      }
+      if (binary.specialization == NUMERIC && (type == TokenType.PLUS || type == TokenType.MINUS
+          || type == TokenType.STAR || type == TokenType.SLASH)) {
+        double left;
+        try {
+          left = evaluateDouble(binary.left);
+        } catch (UnexpectedValue unexpected) {
+          return expectDouble(despecialize(binary, unexpected.value, evaluate(binary.right)));
+        }
+        double right;
+        try {
+          right = evaluateDouble(binary.right);
+        } catch (UnexpectedValue unexpected) {
+          return expectDouble(despecialize(binary, left, unexpected.value));
+        }
+        return arithmetic(type, left, right);
+      }
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      if (unary.specialization == NUMERIC) {
+        try {
+          return -evaluateDouble(unary.right);
+        } catch (UnexpectedValue unexpected) {
+          unary.specialization = GENERIC;
+          return expectDouble(unary(unary.operator, unexpected.value));
+        }
+      }
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateDouble(((Expr.Grouping)expr).expression);
+    }
+    return expectDouble(evaluate(expr));
+  }
+
+  // evaluates an operand of user that TypeInference proved to be a number: arithmetic on proven operands
+  // passes doubles without boxing them, and only the leaves are checked as they are unboxed
+  private double evaluateNumber(Expr expr, Expr user) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      TokenType type = binary.operator.type;
+      if (binary.operands == LoxType.NUMBER && (type == TokenType.PLUS || type == TokenType.MINUS
+          || type == TokenType.STAR || type == TokenType.SLASH)) {
+        double left = evaluateNumber(binary.left, binary);
+        return arithmetic(type, left, evaluateNumber(binary.right, binary));
+      }
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      if (unary.operand == LoxType.NUMBER && unary.operator.type == TokenType.MINUS) {
+        return -evaluateNumber(unary.right, unary);
+      }
+    } else if (expr instanceof Expr.Grouping) {
+      return evaluateNumber(((Expr.Grouping)expr).expression, user);
+    }
+    Object value = evaluate(expr);
+    if (value instanceof Double) return (double)value;
+    throw notANumber(user);
+  }
+
+  // the error an operator reports for an operand that is not a number. a proven operand is checked all
+  // the same when it is unboxed, so a proof that does not hold fails like the unproven operator would
+  static RuntimeError notANumber(Expr user) {
+    if (user instanceof Expr.Unary) {
+      return new RuntimeError(((Expr.Unary)user).operator, "Operand must be a number.");
+    }
+    Token operator = ((Expr.Binary)user).operator;
+    if (operator.type == TokenType.PLUS) return new RuntimeError(operator, "operands must be of same type.");
+    return new RuntimeError(operator, "Operands must be numbers.");
+  }
+
+  private static double expectDouble(Object value) {
+    if (value instanceof Double) return (double)value;
+    throw new UnexpectedValue(value);
+  }
+
   @Override
   public Object visitLogicalExpr(Expr.Logical expr) {
       Object left = evaluate(expr.left);
@@ -334,13 +913,15 @@ public Void visitDefaultStmt(Stmt.Default stmt) {
 
   @Override
 public Object visitGetExpr(Expr.Get expr) {
-    Object object = evaluate(expr.object);
+    return getProperty(evaluate(expr.object), expr.name, expr.cache);
+}
 
+private Object getProperty(Object object, Token name, InlineCache cache) {
     if (object instanceof LoxInstance) {
-        return ((LoxInstance) object).get(expr.name);
+        return cache.get((LoxInstance) object, name);
     }
 
-    throw new RuntimeError(expr.name, "Only instances have properties.");
+    throw new RuntimeError(name, "Only instances have properties.");
 }
 
   @Override
@@ -355,58 +936,582 @@ public Object visitGetExpr(Expr.Get expr) {
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    if (expr.slot < 0 && !expr.upvalue) {
+      Global global = expr.global;
+      if (global == null) global = expr.global = globals.cell(expr.name.symbol);
+      return global.get(expr.name);
+    }
+    return lookUpVariable(expr.name, expr.slot, expr.upvalue);
   }
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-      return lookUpVariable(expr.keyword, expr);
+      return lookUpVariable(expr.keyword, expr.slot, expr.upvalue);
   }
   
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
-    } else {
-      return globals.get(name);
-    }
+  // slot is -1 for names the resolver left to the globals
+  private Object lookUpVariable(Token name, int slot, boolean upvalue) {
+    if (upvalue) return read(upvalues[slot]);
+    if (slot >= 0) return stack[fp + slot];
+    return globals.get(name);
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
     if (object instanceof Boolean) return (boolean)object;
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
+    if (a instanceof LoxString) a = a.toString(); // equal to the String with the same characters
+    if (b instanceof LoxString) b = b.toString();
     if (a == null && b == null) return true;
     if (a == null) return false;
     return a.equals(b);
   }
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
+      if (expr.operand == LoxType.NUMBER && expr.operator.type == TokenType.MINUS) {
+          return -evaluateNumber(expr.right, expr);
+      }
+      if (expr.specialization == NUMERIC) {
+          try {
+              return -evaluateDouble(expr.right);
+          } catch (UnexpectedValue unexpected) {
+              expr.specialization = GENERIC;
+              return unary(expr.operator, unexpected.value);
+          }
+      }
+
       Object right = evaluate(expr.right);
-      switch (expr.operator.type) {
+      if (expr.specialization == UNINITIALIZED) {
+          boolean numeric = expr.operator.type == TokenType.MINUS && right instanceof Double;
+          expr.specialization = numeric ? NUMERIC : GENERIC;
+      }
+      return unary(expr.operator, right);
+  }
+
+  private Object unary(Token operator, Object right) {
+      switch (operator.type) {
           case BANG:
               return !isTruthy(right);
           case MINUS:
+              checkNumberOperand(operator, right);
               return -(double) right;
       }
       return null;
   }
- 
-  class Return extends RuntimeException {
-    final Token keyword;
-    final Expr value;
 
-    Return(Token keyword, Expr value) {
-        this.keyword = keyword;
-        this.value = value;
+  private Task pushTask(Object node) {
+    if (tp == tasks.length) tasks = Arrays.copyOf(tasks, tp * 2);
+    Task task = tasks[tp];
+    if (task == null) task = tasks[tp] = new Task();
+    tp++;
+    task.node = node;
+    task.state = 0;
+    task.index = 0;
+    task.tail = false;
+    return task;
+  }
+
+  private void popTask() {
+    Task task = tasks[--tp];
+    task.node = task.value = task.saved = null;
+  }
+
+  private void pushValue(Object value) {
+    if (vp == values.length) values = Arrays.copyOf(values, vp * 2);
+    values[vp++] = value;
+  }
+
+  private Object popValue() {
+    Object value = values[--vp];
+    values[vp] = null;
+    return value;
+  }
+
+  // the task is finished: a statement hands its signal to the task below, an expression its value
+  private void complete(Object signal) {
+    popTask();
+    completion = signal;
+  }
+
+  private void produce(Object value) {
+    popTask();
+    pushValue(value);
+  }
+
+  // call-free expressions and statements are evaluated on the spot, as the recursive interpreter does
+  private void pushExpr(Expr expr) {
+    if (isCallFree(expr)) {
+      pushValue(evaluate(expr));
+    } else {
+      pushTask(expr);
     }
-}
+  }
+
+  private void pushStmt(Stmt stmt) {
+    if (isCallFree(stmt)) {
+      completion = execute(stmt);
+    } else {
+      completion = null;
+      pushTask(stmt);
+    }
+  }
+
+  // the callFree annotation of a node: worked out the first time the stackless machine meets it
+  private static final int CALLS_UNKNOWN = 0;
+  private static final int CALL_FREE = 1;
+  private static final int MAKES_CALLS = 2;
+
+  // whether running the node can never call a function; the bodies of declared functions don't count.
+  // statement lists have nowhere to keep the answer, so they ask their statements each time
+  private boolean isCallFree(Object node) {
+    if (node == null) return true;
+    if (node instanceof List) {
+      for (Object element : (List<?>)node) {
+        if (!isCallFree(element)) return false;
+      }
+      return true;
+    }
+    int known = node instanceof Expr ? ((Expr)node).callFree : ((Stmt)node).callFree;
+    if (known != CALLS_UNKNOWN) return known == CALL_FREE;
+
+    boolean result;
+    if (node instanceof Expr.Call) {
+      result = false;
+    } else if (node instanceof Expr.Assign) {
+      result = isCallFree(((Expr.Assign)node).value);
+    } else if (node instanceof Expr.Binary) {
+      result = isCallFree(((Expr.Binary)node).left) && isCallFree(((Expr.Binary)node).right);
+    } else if (node instanceof Expr.Logical) {
+      result = isCallFree(((Expr.Logical)node).left) && isCallFree(((Expr.Logical)node).right);
+    } else if (node instanceof Expr.Get) {
+      result = isCallFree(((Expr.Get)node).object);
+    } else if (node instanceof Expr.Set) {
+      result = isCallFree(((Expr.Set)node).object) && isCallFree(((Expr.Set)node).value);
+    } else if (node instanceof Expr.Grouping) {
+      result = isCallFree(((Expr.Grouping)node).expression);
+    } else if (node instanceof Expr.Unary) {
+      result = isCallFree(((Expr.Unary)node).right);
+    } else if (node instanceof Stmt.Expression) {
+      result = isCallFree(((Stmt.Expression)node).expression);
+    } else if (node instanceof Stmt.Print) {
+      result = isCallFree(((Stmt.Print)node).expression);
+    } else if (node instanceof Stmt.Var) {
+      result = isCallFree(((Stmt.Var)node).initializer);
+    } else if (node instanceof Stmt.Return) {
+      result = isCallFree(((Stmt.Return)node).value);
+    } else if (node instanceof Stmt.If) {
+      Stmt.If stmt = (Stmt.If)node;
+      result = isCallFree(stmt.condition) && isCallFree(stmt.thenBranch) && isCallFree(stmt.elseBranch);
+    } else if (node instanceof Stmt.While) {
+      result = isCallFree(((Stmt.While)node).condition) && isCallFree(((Stmt.While)node).body);
+    } else if (node instanceof Stmt.Block) {
+      result = isCallFree(((Stmt.Block)node).statements);
+    } else if (node instanceof Stmt.Switch) {
+      Stmt.Switch stmt = (Stmt.Switch)node;
+      result = isCallFree(stmt.condition) && isCallFree(stmt.cases) && isCallFree(stmt.defaultCase);
+    } else if (node instanceof Stmt.Case) {
+      result = isCallFree(((Stmt.Case)node).value) && isCallFree(((Stmt.Case)node).statements);
+    } else if (node instanceof Stmt.Default) {
+      result = isCallFree(((Stmt.Default)node).statements);
+    } else {
+      result = true; // literals, variables, this, super, break, and function and class declarations
+    }
+    if (node instanceof Expr) {
+      ((Expr)node).callFree = result ? CALL_FREE : MAKES_CALLS;
+    } else {
+      ((Stmt)node).callFree = result ? CALL_FREE : MAKES_CALLS;
+    }
+    return result;
+  }
+
+  private void step(Task task) {
+    Object node = task.node;
+    if (node instanceof Expr.Call) {
+      stepCall(task, (Expr.Call)node);
+    } else if (node instanceof Expr) {
+      stepExpr(task, (Expr)node);
+    } else if (node instanceof Stmt) {
+      stepStmt(task, (Stmt)node);
+    } else if (node instanceof LoxFunction) {
+      stepFrame(task, (LoxFunction)node);
+    } else {
+      @SuppressWarnings("unchecked")
+      List<Stmt> statements = (List<Stmt>)node;
+      stepStatements(task, statements);
+    }
+  }
+
+  // runs a statement list, stopping at the first break or return like executeStatements. the top-level
+  // code is the bottom task, and it drops a stray signal and carries on like interpret does
+  private void stepStatements(Task task, List<Stmt> statements) {
+    if (task.index > 0 && completion != null && tp == 1) completion = null;
+    if (task.index > 0 && completion != null) {
+      complete(completion);
+    } else if (task.index == statements.size()) {
+      complete(null);
+    } else {
+      pushStmt(statements.get(task.index++));
+    }
+  }
+
+  private void stepFrame(Task task, LoxFunction function) {
+    List<Stmt> body = function.declaration.body;
+    if ((task.index > 0 && completion != null) || task.index == body.size()) {
+      Object value = completion == RETURN ? takeReturnValue() : null;
+      LoxInstance receiver = (LoxInstance)task.value;
+      completion = null;
+      leaveFrame();
+      pushValue(function.isInitializer ? receiver : value);
+    } else {
+      pushStmt(body.get(task.index++));
+    }
+  }
+
+  // starts running a function in a new frame; a tail call first drops the frame of the function returning
+  private void enterFrame(LoxFunction function, LoxInstance receiver, Object[] arguments, boolean tail,
+                          Token paren) {
+    if (tail) {
+      while (!(tasks[tp - 1].node instanceof LoxFunction)) popTask();
+      leaveFrame();
+    }
+
+    Object result = function.runCompiled(globals, stack, arguments, false);
+    if (result != LoxFunction.NOT_COMPILED) {
+      pushValue(result);
+      return;
+    }
+
+    if (frames == maxFrames) throw new RuntimeError(paren, "Stack overflow.");
+    frames++;
+    Task frame = pushTask(function);
+    frame.value = receiver;
+    frame.state = fp;
+    frame.saved = upvalues;
+
+    int frameSize = function.declaration.frameSize;
+    growStack(frameSize);
+    fp = sp;
+    sp += frameSize;
+    upvalues = function.upvalues;
+    int slot = fp;
+    if (function.isMethod) stack[slot++] = receiver;
+    for (Object argument : arguments) {
+      stack[slot++] = argument;
+    }
+  }
+
+  private void leaveFrame() {
+    Task frame = tasks[tp - 1];
+    closeUpvalues(fp);
+    sp = fp;
+    fp = frame.state;
+    upvalues = (Upvalue[])frame.saved;
+    frames--;
+    popTask();
+  }
+
+  // same order of evaluation and errors as call(): callee, arguments, then the checks
+  private void stepCall(Task task, Expr.Call expr) {
+    switch (task.state) {
+      case 0:
+        if (expr.callee instanceof Expr.Get) {
+          pushExpr(((Expr.Get)expr.callee).object);
+          task.state = 1;
+        } else {
+          pushExpr(expr.callee);
+          task.state = 2;
+        }
+        return;
+      case 1: {
+        Expr.Get get = (Expr.Get)expr.callee;
+        Object object = popValue();
+        LoxFunction method = object instanceof LoxInstance ? expr.cache.method((LoxInstance)object, get.name) : null;
+        if (method != null) {
+          task.value = object;
+          task.saved = method;
+        } else {
+          task.saved = getProperty(object, get.name, expr.cache);
+        }
+        task.state = 3;
+        return;
+      }
+      case 2:
+        task.saved = popValue();
+        task.state = 3;
+        return;
+    }
+
+    int count = expr.arguments.size();
+    if (task.index < count) {
+      pushExpr(expr.arguments.get(task.index++));
+      return;
+    }
+
+    Object[] arguments = Arrays.copyOfRange(values, vp - count, vp);
+    Arrays.fill(values, vp - count, vp, null);
+    vp -= count;
+
+    Object callee = task.saved;
+    LoxInstance receiver = (LoxInstance)task.value;
+    boolean tail = task.tail;
+    popTask();
+
+    LoxCallable function = checkCallable(expr, callee, count);
+    if (receiver != null) {
+      enterFrame((LoxFunction)function, receiver, arguments, tail, expr.paren);
+    } else if (function instanceof LoxFunction) {
+      enterFrame((LoxFunction)function, ((LoxFunction)function).receiver, arguments, tail, expr.paren);
+    } else if (function instanceof LoxClass && ((LoxClass)function).initializer != null) {
+      LoxInstance instance = new LoxInstance((LoxClass)function);
+      enterFrame(((LoxClass)function).initializer, instance, arguments, false, expr.paren);
+    } else {
+      pushValue(function.call(this, arguments)); // natives, and classes without an initializer
+    }
+  }
+
+  private void stepExpr(Task task, Expr expr) {
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary)expr;
+      if (task.state == 0) {
+        pushExpr(binary.left);
+        task.state = 1;
+      } else if (task.state == 1) {
+        pushExpr(binary.right);
+        task.state = 2;
+      } else {
+        Object right = popValue();
+        produce(binary(binary.operator, popValue(), right));
+      }
+    } else if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical)expr;
+      if (task.state == 0) {
+        pushExpr(logical.left);
+        task.state = 1;
+      } else {
+        Object left = values[vp - 1];
+        if (logical.operator.type == TokenType.OR ? isTruthy(left) : !isTruthy(left)) {
+          popTask(); // short-circuits to the left value
+        } else {
+          popValue();
+          popTask();
+          pushExpr(logical.right);
+        }
+      }
+    } else if (expr instanceof Expr.Grouping) {
+      popTask();
+      pushExpr(((Expr.Grouping)expr).expression);
+    } else if (expr instanceof Expr.Unary) {
+      Expr.Unary unary = (Expr.Unary)expr;
+      if (task.state == 0) {
+        pushExpr(unary.right);
+        task.state = 1;
+      } else {
+        produce(unary(unary.operator, popValue()));
+      }
+    } else if (expr instanceof Expr.Assign) {
+      Expr.Assign assign = (Expr.Assign)expr;
+      if (task.state == 0) {
+        pushExpr(assign.value);
+        task.state = 1;
+      } else {
+        produce(assign(assign, popValue()));
+      }
+    } else if (expr instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get)expr;
+      if (task.state == 0) {
+        pushExpr(get.object);
+        task.state = 1;
+      } else {
+        produce(getProperty(popValue(), get.name, get.cache));
+      }
+    } else if (expr instanceof Expr.Set) {
+      Expr.Set set = (Expr.Set)expr;
+      if (task.state == 0) {
+        pushExpr(set.object);
+        task.state = 1;
+      } else if (task.state == 1) {
+        if (!(values[vp - 1] instanceof LoxInstance)) {
+          throw new RuntimeError(set.name, "Only instances have fields.");
+        }
+        pushExpr(set.value);
+        task.state = 2;
+      } else {
+        Object value = popValue();
+        set.cache.set((LoxInstance)popValue(), set.name, value);
+        produce(value);
+      }
+    }
+  }
+
+  private void stepStmt(Task task, Stmt stmt) {
+    if (stmt instanceof Stmt.Expression) {
+      if (task.state == 0) {
+        pushExpr(((Stmt.Expression)stmt).expression);
+        task.state = 1;
+      } else {
+        popValue();
+        complete(null);
+      }
+    } else if (stmt instanceof Stmt.Block) {
+      Stmt.Block block = (Stmt.Block)stmt;
+      if ((task.index > 0 && completion != null) || task.index == block.statements.size()) {
+        if (block.closeFrom >= 0) closeUpvalues(fp + block.closeFrom);
+        complete(completion);
+      } else {
+        pushStmt(block.statements.get(task.index++));
+      }
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If)stmt;
+      if (task.state == 0) {
+        pushExpr(ifStmt.condition);
+        task.state = 1;
+      } else {
+        Stmt branch = isTruthy(popValue()) ? ifStmt.thenBranch : ifStmt.elseBranch;
+        popTask(); // the branch completes in place of the if
+        if (branch != null) {
+          pushStmt(branch);
+        } else {
+          completion = null;
+        }
+      }
+    } else if (stmt instanceof Stmt.While) {
+      Stmt.While whileStmt = (Stmt.While)stmt;
+      if (task.state == 0) {
+        pushExpr(whileStmt.condition);
+        task.state = 1;
+      } else if (task.state == 1) {
+        if (isTruthy(popValue())) {
+          task.state = 2;
+          pushStmt(whileStmt.body);
+        } else {
+          complete(null);
+        }
+      } else if (completion == BREAK) {
+        complete(null);
+      } else if (completion != null) {
+        complete(completion);
+      } else {
+        task.state = 0;
+      }
+    } else if (stmt instanceof Stmt.Return) {
+      Stmt.Return returnStmt = (Stmt.Return)stmt;
+      if (task.state == 0) {
+        task.state = 1;
+        if (returnStmt.value instanceof Expr.Call) {
+          pushTask(returnStmt.value).tail = true;
+        } else {
+          pushExpr(returnStmt.value);
+        }
+      } else {
+        returnValue = popValue();
+        complete(RETURN);
+      }
+    } else if (stmt instanceof Stmt.Var) {
+      Stmt.Var var = (Stmt.Var)stmt;
+      if (task.state == 0) {
+        pushExpr(var.initializer);
+        task.state = 1;
+      } else {
+        declare(var.slot, var.name, popValue());
+        complete(null);
+      }
+    } else if (stmt instanceof Stmt.Print) {
+      if (task.state == 0) {
+        pushExpr(((Stmt.Print)stmt).expression);
+        task.state = 1;
+      } else {
+        System.out.println(stringify(popValue()));
+        complete(null);
+      }
+    } else if (stmt instanceof Stmt.Switch) {
+      stepSwitch(task, (Stmt.Switch)stmt);
+    }
+  }
+
+  // states of a switch task: the value is kept in the task while the cases are matched and run
+  private static final int SWITCH_MATCH = 1;
+  private static final int SWITCH_COMPARE = 2;
+  private static final int SWITCH_RUN = 3;
+  private static final int SWITCH_NEXT = 4;
+  private static final int SWITCH_DEFAULT = 5;
+
+  // mirrors visitSwitchStmt: a jump table picks the first case, otherwise the case values are compared
+  // in order; matched cases fall through, and the default runs only when nothing matched
+  private void stepSwitch(Task task, Stmt.Switch stmt) {
+    switch (task.state) {
+      case 0:
+        pushExpr(stmt.condition);
+        task.state = SWITCH_MATCH;
+        return;
+      case SWITCH_MATCH:
+        task.value = popValue();
+        if (stmt.jumpTable == null) {
+          task.index = 0;
+          task.state = SWITCH_COMPARE;
+          return;
+        }
+        int first = stmt.jumpTable.lookup(task.value);
+        if (first >= 0) {
+          task.index = first;
+          task.state = SWITCH_RUN;
+        } else {
+          runDefault(task, stmt);
+        }
+        return;
+      case SWITCH_COMPARE:
+        if (task.index == stmt.cases.size()) {
+          runDefault(task, stmt);
+        } else {
+          pushExpr(stmt.cases.get(task.index).value);
+          task.state = SWITCH_NEXT;
+        }
+        return;
+      case SWITCH_NEXT:
+        if (isEqual(task.value, popValue())) {
+          task.state = SWITCH_RUN;
+        } else {
+          task.index++;
+          task.state = SWITCH_COMPARE;
+        }
+        return;
+      case SWITCH_RUN:
+        if (task.index > 0 && completion != null) {
+          complete(completion == BREAK ? null : completion);
+        } else if (task.index == stmt.cases.size()) {
+          complete(null);
+        } else {
+          pushStatements(stmt.cases.get(task.index++).statements);
+        }
+        return;
+      case SWITCH_DEFAULT:
+        complete(completion == BREAK ? null : completion);
+        return;
+    }
+  }
+
+  private void runDefault(Task task, Stmt.Switch stmt) {
+    if (stmt.defaultCase == null) {
+      complete(null);
+      return;
+    }
+    task.state = SWITCH_DEFAULT;
+    pushStatements(stmt.defaultCase.statements);
+  }
+
+  private void pushStatements(List<Stmt> statements) {
+    if (isCallFree(statements)) {
+      completion = executeStatements(statements);
+    } else {
+      completion = null;
+      pushTask(statements);
+    }
+  }
 
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) return "nil";
     if (object instanceof Double) {
       String text = object.toString();
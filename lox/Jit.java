@@ -0,0 +1,378 @@
+package com.sjlox.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+// compiles hot numeric Lox functions to jvm bytecode, loaded as hidden classes so hotspot can optimize them
+// like any Java method. only pure numeric kernels qualify: number parameters and locals, arithmetic,
+// comparisons, if/while, and calls to the function itself. anything else stays interpreted
+final class Jit {
+  static final int THRESHOLD = 50; // calls before a function is compiled
+
+  // entry point of a compiled function
+  interface Code {
+    Object call(Object[] arguments);
+  }
+
+  // thrown by compiled code when it would produce a value it cannot represent (returning nil). the
+  // kernel is pure, so the caller simply runs the call again in the interpreter
+  static final class Deopt extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    static final Deopt INSTANCE = new Deopt();
+
+    private Deopt() {
+      super(null, null, false, false);
+    }
+  }
+
+  // a compiled function plus what must hold for it to run
+  static final class Compiled {
+    final Code code;
+    private final List<Integer> selfReferences; // the upvalue each self-call goes through, or -1 for a global
+    private Global global; // the cell of the function's global name, linked the first time it is checked
+
+    Compiled(Code code, List<Integer> selfReferences) {
+      this.code = code;
+      this.selfReferences = selfReferences;
+    }
+
+    // the body calls itself, so the compiled code nests on the jvm stack as deep as the recursion goes
+    boolean recursive() {
+      return !selfReferences.isEmpty();
+    }
+
+    // the arguments must all be numbers, and the name the body calls itself by must still mean this
+    // function in the globals and on the value stack of the engine making the call
+    boolean canRun(LoxFunction function, Environment globals, Object[] stack, Object[] arguments) {
+      for (Object argument : arguments) {
+        if (!(argument instanceof Double)) return false;
+      }
+      for (int reference : selfReferences) {
+        Object callee;
+        if (reference < 0) {
+          if (global == null) global = globals.cell(function.declaration.name.symbol);
+          callee = global.get(function.declaration.name);
+        } else {
+          Upvalue upvalue = function.upvalues[reference];
+          callee = upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed;
+        }
+        if (callee != function) return false;
+      }
+      return true;
+    }
+  }
+
+  // called by generated code; see Deopt
+  static RuntimeException deopt() {
+    return Deopt.INSTANCE;
+  }
+
+  private Jit() {}
+
+  // compiles a function, or returns null if it is not a pure numeric kernel
+  static Compiled compile(Stmt.Function function) {
+    try {
+      Generator generator = new Generator(function);
+      byte[] bytes = generator.generate();
+      MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(bytes, true);
+      Code code = (Code)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+      return new Compiled(code, generator.selfReferences);
+    } catch (Unsupported unsupported) {
+      return null;
+    } catch (Throwable error) {
+      return null; // a kernel the jvm refuses simply stays interpreted
+    }
+  }
+
+  private static final class Unsupported extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    Unsupported() {
+      super(null, null, false, false);
+    }
+  }
+
+  // jvm opcodes used by the generator
+  private static final int DCONST_0 = 0x0e, DCONST_1 = 0x0f, BIPUSH = 0x10, SIPUSH = 0x11, LDC2_W = 0x14;
+  private static final int DLOAD = 0x18, DLOAD_0 = 0x26, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, AALOAD = 0x32;
+  private static final int DSTORE = 0x39, DSTORE_0 = 0x47, POP2 = 0x58, DUP2 = 0x5c;
+  private static final int DADD = 0x63, DSUB = 0x67, DMUL = 0x6b, DDIV = 0x6f, DNEG = 0x77;
+  private static final int DCMPL = 0x97, DCMPG = 0x98;
+  private static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e;
+  private static final int GOTO = 0xa7, DRETURN = 0xaf, ARETURN = 0xb0, RETURN = 0xb1;
+  private static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+  private static final int ATHROW = 0xbf, CHECKCAST = 0xc0;
+
+  private static final String PACKAGE = "com/sjlox/lox/";
+
+  // walks a function body, emitting bytecode and bailing out with Unsupported on anything outside the subset
+  private static final class Generator {
+    private final Stmt.Function function;
+    private final String className;
+    private final String descriptor;
+    private final ClassFileWriter writer = new ClassFileWriter();
+    private ClassFileWriter.MethodWriter method;
+    private int entry; // the top of the kernel, where tail self-calls jump back to
+    final List<Integer> selfReferences = new ArrayList<>();
+
+    Generator(Stmt.Function function) {
+      this.function = function;
+      this.className = PACKAGE + "JitCode$" + function.name.lexeme;
+      StringBuilder builder = new StringBuilder("(");
+      for (int i = 0; i < function.params.size(); i++) builder.append('D');
+      this.descriptor = builder.append(")D").toString();
+    }
+
+    byte[] generate() {
+      generateConstructor();
+      generateKernel();
+      generateBridge();
+      return writer.toByteArray(0x0031, className, "java/lang/Object", PACKAGE + "Jit$Code"); // public final super
+    }
+
+    private void generateConstructor() {
+      ClassFileWriter.MethodWriter init = writer.method(0x0001, "<init>", "()V");
+      init.op(ALOAD_0, 1);
+      init.op2(INVOKESPECIAL, writer.methodRef("java/lang/Object", "<init>", "()V"), -1);
+      init.op(RETURN, 0);
+      init.maxLocals = 1;
+    }
+
+    // public Object call(Object[] arguments): unboxes, runs the kernel, boxes the result
+    private void generateBridge() {
+      ClassFileWriter.MethodWriter bridge = writer.method(0x0001, "call", "([Ljava/lang/Object;)Ljava/lang/Object;");
+      for (int i = 0; i < function.params.size(); i++) {
+        bridge.op(ALOAD_1, 1);
+        if (i <= 127) {
+          bridge.op1(BIPUSH, i, 1);
+        } else {
+          bridge.op2(SIPUSH, i, 1);
+        }
+        bridge.op(AALOAD, -1);
+        bridge.op2(CHECKCAST, writer.classRef("java/lang/Double"), 0);
+        bridge.op2(INVOKEVIRTUAL, writer.methodRef("java/lang/Double", "doubleValue", "()D"), 1);
+      }
+      bridge.op2(INVOKESTATIC, writer.methodRef(className, "invoke", descriptor), 2 - 2 * function.params.size());
+      bridge.op2(INVOKESTATIC, writer.methodRef("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;"), -1);
+      bridge.op(ARETURN, -1);
+      bridge.maxLocals = 2;
+    }
+
+    // static double invoke(double...): the function body itself
+    private void generateKernel() {
+      method = writer.method(0x000a, "invoke", descriptor); // private static
+      entry = method.newLabel();
+      method.mark(entry);
+      for (Stmt statement : function.body) {
+        statement(statement);
+      }
+      deoptimize(); // falling off the end returns nil
+      method.maxLocals = 2 * function.frameSize;
+      if (method.length() > Short.MAX_VALUE) throw new Unsupported(); // branch offsets are 16 bits
+    }
+
+    // each frame slot is a double local; the parameters take the first ones, as the jvm passes them
+    private static int local(int slot) {
+      return 2 * slot;
+    }
+
+    private void deoptimize() {
+      method.op2(INVOKESTATIC, writer.methodRef(PACKAGE + "Jit", "deopt", "()Ljava/lang/RuntimeException;"), 1);
+      method.op(ATHROW, -1);
+    }
+
+
+    private void statement(Stmt stmt) {
+      if (stmt instanceof Stmt.Expression) {
+        expression(((Stmt.Expression)stmt).expression);
+        method.op(POP2, -2);
+      } else if (stmt instanceof Stmt.Var) {
+        Stmt.Var var = (Stmt.Var)stmt;
+        if (var.initializer == null) throw new Unsupported(); // would start out nil
+        expression(var.initializer);
+        method.local(DSTORE, DSTORE_0, local(var.slot), -2);
+      } else if (stmt instanceof Stmt.Block) {
+        for (Stmt statement : ((Stmt.Block)stmt).statements) {
+          statement(statement);
+        }
+      } else if (stmt instanceof Stmt.If) {
+        Stmt.If ifStmt = (Stmt.If)stmt;
+        int elseLabel = method.newLabel();
+        int endLabel = method.newLabel();
+        branch(ifStmt.condition, elseLabel, false);
+        statement(ifStmt.thenBranch);
+        method.jump(GOTO, endLabel, 0);
+        method.mark(elseLabel);
+        if (ifStmt.elseBranch != null) statement(ifStmt.elseBranch);
+        method.mark(endLabel);
+      } else if (stmt instanceof Stmt.While) {
+        Stmt.While whileStmt = (Stmt.While)stmt;
+        int top = method.newLabel();
+        int exit = method.newLabel();
+        method.mark(top);
+        branch(whileStmt.condition, exit, false);
+        statement(whileStmt.body);
+        method.jump(GOTO, top, 0);
+        method.mark(exit);
+      } else if (stmt instanceof Stmt.Return) {
+        Stmt.Return returnStmt = (Stmt.Return)stmt;
+        if (returnStmt.value == null) {
+          deoptimize();
+        } else if (returnStmt.value instanceof Expr.Call) {
+          tailSelfCall((Expr.Call)returnStmt.value);
+        } else {
+          expression(returnStmt.value);
+          method.op(DRETURN, -2);
+        }
+      } else {
+        throw new Unsupported(); // print, classes, nested functions, switch and break are not pure numeric code
+      }
+    }
+
+    // leaves a double on the stack
+    private void expression(Expr expr) {
+      if (expr instanceof Expr.Literal) {
+        Object value = ((Expr.Literal)expr).value;
+        if (!(value instanceof Double)) throw new Unsupported();
+        long bits = Double.doubleToRawLongBits((double)value);
+        if (bits == Double.doubleToRawLongBits(0.0)) {
+          method.op(DCONST_0, 2);
+        } else if (bits == Double.doubleToRawLongBits(1.0)) {
+          method.op(DCONST_1, 2);
+        } else {
+          method.op2(LDC2_W, writer.doubleConstant((double)value), 2);
+        }
+      } else if (expr instanceof Expr.Grouping) {
+        expression(((Expr.Grouping)expr).expression);
+      } else if (expr instanceof Expr.Variable) {
+        Expr.Variable variable = (Expr.Variable)expr;
+        if (variable.upvalue || variable.slot < 0) throw new Unsupported(); // lives outside this function
+        method.local(DLOAD, DLOAD_0, local(variable.slot), 2);
+      } else if (expr instanceof Expr.Assign) {
+        Expr.Assign assign = (Expr.Assign)expr;
+        if (assign.upvalue || assign.slot < 0) throw new Unsupported();
+        expression(assign.value);
+        method.op(DUP2, 2);
+        method.local(DSTORE, DSTORE_0, local(assign.slot), -2);
+      } else if (expr instanceof Expr.Unary && ((Expr.Unary)expr).operator.type == TokenType.MINUS) {
+        expression(((Expr.Unary)expr).right);
+        method.op(DNEG, 0);
+      } else if (expr instanceof Expr.Binary && arithmetic(((Expr.Binary)expr).operator.type) != 0) {
+        Expr.Binary binary = (Expr.Binary)expr;
+        expression(binary.left);
+        expression(binary.right);
+        method.op(arithmetic(binary.operator.type), -2);
+      } else if (expr instanceof Expr.Call) {
+        selfCall((Expr.Call)expr);
+      } else {
+        throw new Unsupported();
+      }
+    }
+
+    private static int arithmetic(TokenType operator) {
+      switch (operator) {
+        case PLUS: return DADD;
+        case MINUS: return DSUB;
+        case STAR: return DMUL;
+        case SLASH: return DDIV;
+        default: return 0;
+      }
+    }
+
+    // only calls of the function by its own name are compiled, as direct static calls
+    private void selfCall(Expr.Call call) {
+      checkSelfCall(call);
+      for (Expr argument : call.arguments) {
+        expression(argument);
+      }
+      method.op2(INVOKESTATIC, writer.methodRef(className, "invoke", descriptor), 2 - 2 * call.arguments.size());
+    }
+
+    // a self-call in return position rebinds the parameters and jumps back to the top instead of
+    // recursing, so tail-recursive loops run in constant jvm stack
+    private void tailSelfCall(Expr.Call call) {
+      checkSelfCall(call);
+      for (Expr argument : call.arguments) {
+        expression(argument);
+      }
+      for (int i = call.arguments.size() - 1; i >= 0; i--) {
+        method.local(DSTORE, DSTORE_0, local(i), -2);
+      }
+      method.jump(GOTO, entry, 0);
+    }
+
+    private void checkSelfCall(Expr.Call call) {
+      if (!(call.callee instanceof Expr.Variable)) throw new Unsupported();
+      Expr.Variable callee = (Expr.Variable)call.callee;
+      if (!callee.name.lexeme.equals(function.name.lexeme)) throw new Unsupported();
+      if (call.arguments.size() != function.params.size()) throw new Unsupported();
+
+      // the name must resolve outside the function, where canRun checks it before every entry
+      if (callee.slot >= 0 && !callee.upvalue) throw new Unsupported();
+      selfReferences.add(callee.slot);
+    }
+
+    // jumps to target when the condition's truthiness equals jumpWhen, otherwise falls through
+    private void branch(Expr condition, int target, boolean jumpWhen) {
+      if (condition instanceof Expr.Grouping) {
+        branch(((Expr.Grouping)condition).expression, target, jumpWhen);
+      } else if (condition instanceof Expr.Literal && !(((Expr.Literal)condition).value instanceof Double)) {
+        Object value = ((Expr.Literal)condition).value;
+        if (Interpreter.isTruthy(value) == jumpWhen) method.jump(GOTO, target, 0);
+      } else if (condition instanceof Expr.Unary && ((Expr.Unary)condition).operator.type == TokenType.BANG) {
+        branch(((Expr.Unary)condition).right, target, !jumpWhen);
+      } else if (condition instanceof Expr.Logical) {
+        Expr.Logical logical = (Expr.Logical)condition;
+        boolean isOr = logical.operator.type == TokenType.OR;
+        if (isOr == jumpWhen) {
+          // or jumping on true / and jumping on false: either operand decides
+          branch(logical.left, target, jumpWhen);
+          branch(logical.right, target, jumpWhen);
+        } else {
+          int skip = method.newLabel();
+          branch(logical.left, skip, !jumpWhen);
+          branch(logical.right, target, jumpWhen);
+          method.mark(skip);
+        }
+      } else if (condition instanceof Expr.Binary && comparison((Expr.Binary)condition, target, jumpWhen)) {
+        return;
+      } else {
+        // any other value is a number, and numbers are always truthy
+        expression(condition);
+        method.op(POP2, -2);
+        if (jumpWhen) method.jump(GOTO, target, 0);
+      }
+    }
+
+    private boolean comparison(Expr.Binary binary, int target, boolean jumpWhen) {
+      TokenType type = binary.operator.type;
+      int compare;
+      int jumpIfTrue;
+      int jumpIfFalse;
+      switch (type) {
+        // dcmpg/dcmpl are picked so that NaN makes every ordered comparison false, as in Java
+        case LESS: compare = DCMPG; jumpIfTrue = IFLT; jumpIfFalse = IFGE; break;
+        case LESS_EQUAL: compare = DCMPG; jumpIfTrue = IFLE; jumpIfFalse = IFGT; break;
+        case GREATER: compare = DCMPL; jumpIfTrue = IFGT; jumpIfFalse = IFLE; break;
+        case GREATER_EQUAL: compare = DCMPL; jumpIfTrue = IFGE; jumpIfFalse = IFLT; break;
+        // equality follows Double.equals, like isEqual: NaN equals itself and 0 differs from -0
+        case EQUAL_EQUAL: compare = -1; jumpIfTrue = IFEQ; jumpIfFalse = IFNE; break;
+        case BANG_EQUAL: compare = -1; jumpIfTrue = IFNE; jumpIfFalse = IFEQ; break;
+        default: return false;
+      }
+
+      expression(binary.left);
+      expression(binary.right);
+      if (compare == -1) {
+        method.op2(INVOKESTATIC, writer.methodRef("java/lang/Double", "compare", "(DD)I"), -3);
+      } else {
+        method.op(compare, -3);
+      }
+      method.jump(jumpWhen ? jumpIfTrue : jumpIfFalse, target, -1);
+      return true;
+    }
+  }
+}
@@ -0,0 +1,29 @@
+package com.sjlox.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// dispatch table for a switch whose case values are all constants: maps each value to the first case
+// holding it. keys compare with equals, as Interpreter.isEqual does, so a lookup finds the same case
+// the sequential comparison would
+final class JumpTable {
+  private final Map<Object, Integer> cases = new HashMap<>();
+
+  // null unless every case value is a literal
+  static JumpTable build(Stmt.Switch stmt) {
+    JumpTable table = new JumpTable();
+    for (int i = 0; i < stmt.cases.size(); i++) {
+      Expr value = stmt.cases.get(i).value;
+      if (!(value instanceof Expr.Literal)) return null;
+      table.cases.putIfAbsent(((Expr.Literal)value).value, i);
+    }
+    return table;
+  }
+
+  // index of the case to start at, or -1 when none matches
+  int lookup(Object value) {
+    if (value instanceof LoxString) value = value.toString(); // case values are plain Strings
+    Integer index = cases.get(value);
+    return index == null ? -1 : index;
+  }
+}
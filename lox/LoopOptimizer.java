@@ -0,0 +1,320 @@
+package com.sjlox.lox;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// recognizes counted loops, which is what for loops over a number desugar to:
+//
+//   while (i < limit) { ...; i = i + step; }
+//
+// with i a local the body never assigns, a constant step and a loop-invariant limit. the loop keeps its
+// statements and gets a CountedLoop annotation; pure expressions in the body whose operands the loop never
+// changes are hoisted into new slots of the frame, evaluated once when the loop starts. runs last, so the
+// other passes have already folded what they could
+class LoopOptimizer extends AstRewriter implements Optimizer {
+  private static final Symbol TEMP = Symbol.intern("(invariant)");
+
+  // the frame of the function (or top-level code) being optimized
+  private Set<Integer> captured = new HashSet<>(); // slots some closure made in the frame captures
+  private int frameSize;
+  private int topLevelSize;
+
+  @Override
+  public List<Stmt> optimize(List<Stmt> statements) {
+    captured = new HashSet<>();
+    frameSize = scanFrame(statements, captured);
+    List<Stmt> result = rewrite(statements);
+    topLevelSize = frameSize;
+    return result;
+  }
+
+  @Override
+  public int frameSize(int frameSize) {
+    return Math.max(frameSize, topLevelSize);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Set<Integer> enclosingCaptured = captured;
+    int enclosingSize = frameSize;
+    captured = new HashSet<>();
+    scanFrame(stmt.body, captured);
+    frameSize = stmt.frameSize;
+
+    Stmt.Function result = (Stmt.Function)super.visitFunctionStmt(stmt);
+    result.frameSize = frameSize; // grown by the temporaries of its loops
+
+    captured = enclosingCaptured;
+    frameSize = enclosingSize;
+    return result;
+  }
+
+  // inner loops are annotated first, so each loop hoists only what is invariant in it
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Stmt.While result = (Stmt.While)super.visitWhileStmt(stmt);
+    if (result.condition instanceof Expr.Binary && result.body instanceof Stmt.Block) {
+      Expr.Binary condition = (Expr.Binary)result.condition;
+      TokenType comparison = condition.operator.type;
+      result.counted = count(result, condition.left, comparison, condition.right);
+      if (result.counted == null) result.counted = count(result, condition.right, mirror(comparison), condition.left);
+    }
+    return result;
+  }
+
+  // the loop as a CountedLoop with counter <comparison> limit as its condition, or null if it isn't one
+  private CountedLoop count(Stmt.While loop, Expr counter, TokenType comparison, Expr limit) {
+    if (!isLocal(counter) || mirror(comparison) == null) return null;
+    int slot = ((Expr.Variable)counter).slot;
+
+    Stmt.Block block = (Stmt.Block)loop.body;
+    int last = block.statements.size() - 1;
+    if (last < 0) return null;
+    Double step = step(block.statements.get(last), slot);
+    if (step == null) return null;
+
+    Stmt body;
+    if (last == 1 && block.closeFrom < 0) {
+      body = block.statements.get(0);
+    } else {
+      Stmt.Block rest = new Stmt.Block(new ArrayList<>(block.statements.subList(0, last)));
+      rest.closeFrom = block.closeFrom;
+      body = rest;
+    }
+
+    LoopFacts facts = new LoopFacts();
+    facts.scan(body);
+    // a closure the body calls could assign the counter behind the loop's back
+    if (facts.declaresFunctions || facts.variant.contains(slot) || (facts.calls && captured.contains(slot))) {
+      return null;
+    }
+    facts.variant.add(slot);
+    if (!isInvariant(limit, facts)) return null;
+
+    Hoister hoister = new Hoister(facts, ((Expr.Binary)loop.condition).operator.line);
+    Stmt hoistedBody = hoister.rewrite(body);
+    int count = hoister.invariants.size();
+    int[] temps = new int[count];
+    for (int i = 0; i < count; i++) {
+      temps[i] = hoister.temps.get(i);
+    }
+    return new CountedLoop(slot, comparison, limit, step, body, hoister.invariants.toArray(new Expr[count]), temps,
+        count == 0 ? null : hoistedBody);
+  }
+
+  private static boolean isLocal(Expr expr) {
+    return expr instanceof Expr.Variable && !((Expr.Variable)expr).upvalue && ((Expr.Variable)expr).slot >= 0;
+  }
+
+  private static boolean isSlot(Expr expr, int slot) {
+    return isLocal(expr) && ((Expr.Variable)expr).slot == slot;
+  }
+
+  // the comparison with its operands swapped, or null for anything but <, <=, > and >=
+  private static TokenType mirror(TokenType comparison) {
+    switch (comparison) {
+      case LESS: return TokenType.GREATER;
+      case LESS_EQUAL: return TokenType.GREATER_EQUAL;
+      case GREATER: return TokenType.LESS;
+      case GREATER_EQUAL: return TokenType.LESS_EQUAL;
+    }
+    return null;
+  }
+
+  // the step of an increment statement i = i + c, i = c + i or i = i - c, or null if it is none of those
+  private static Double step(Stmt stmt, int slot) {
+    if (!(stmt instanceof Stmt.Expression) || !(((Stmt.Expression)stmt).expression instanceof Expr.Assign)) {
+      return null;
+    }
+    Expr.Assign assign = (Expr.Assign)((Stmt.Expression)stmt).expression;
+    if (assign.upvalue || assign.slot != slot || !(assign.value instanceof Expr.Binary)) return null;
+
+    Expr.Binary binary = (Expr.Binary)assign.value;
+    TokenType operator = binary.operator.type;
+    if (isSlot(binary.left, slot) && isNumber(binary.right)) {
+      if (operator == TokenType.PLUS) return (Double)((Expr.Literal)binary.right).value;
+      if (operator == TokenType.MINUS) return -(Double)((Expr.Literal)binary.right).value;
+    } else if (operator == TokenType.PLUS && isNumber(binary.left) && isSlot(binary.right, slot)) {
+      return (Double)((Expr.Literal)binary.left).value;
+    }
+    return null;
+  }
+
+  private static boolean isNumber(Expr expr) {
+    return expr instanceof Expr.Literal && ((Expr.Literal)expr).value instanceof Double;
+  }
+
+  // whether the expression is pure and gives the same value in every iteration of the loop
+  private boolean isInvariant(Expr expr, LoopFacts facts) {
+    if (expr instanceof Expr.Literal) return true;
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable)expr;
+      if (variable.upvalue) return false;
+      if (variable.slot >= 0) {
+        return !facts.variant.contains(variable.slot) && !(facts.calls && captured.contains(variable.slot));
+      }
+      return !facts.calls && !facts.assignedGlobals.contains(variable.name.symbol);
+    }
+    if (expr instanceof Expr.Grouping) return isInvariant(((Expr.Grouping)expr).expression, facts);
+    if (expr instanceof Expr.Unary) return isInvariant(((Expr.Unary)expr).right, facts);
+    if (expr instanceof Expr.Binary) {
+      return isInvariant(((Expr.Binary)expr).left, facts) && isInvariant(((Expr.Binary)expr).right, facts);
+    }
+    if (expr instanceof Expr.Logical) {
+      return isInvariant(((Expr.Logical)expr).left, facts) && isInvariant(((Expr.Logical)expr).right, facts);
+    }
+    return false;
+  }
+
+  // replaces the largest invariant expressions that do some work with reads of new temporaries
+  private final class Hoister extends AstRewriter {
+    private final LoopFacts facts;
+    private final int line;
+    final List<Expr> invariants = new ArrayList<>();
+    final List<Integer> temps = new ArrayList<>();
+
+    Hoister(LoopFacts facts, int line) {
+      this.facts = facts;
+      this.line = line;
+    }
+
+    @Override
+    Expr rewrite(Expr expr) {
+      boolean operation = expr instanceof Expr.Binary || expr instanceof Expr.Logical || expr instanceof Expr.Unary;
+      if (!operation || !isInvariant(expr, facts)) return super.rewrite(expr);
+
+      Expr.Variable temp = new Expr.Variable(new Token(TokenType.IDENTIFIER, TEMP, line));
+      temp.slot = frameSize++;
+      invariants.add(new Unproven().rewrite(expr));
+      temps.add(temp.slot);
+      return temp;
+    }
+
+    // a nested loop hoists its own invariants when it is counted
+    @Override
+    public Stmt visitWhileStmt(Stmt.While stmt) {
+      return stmt;
+    }
+  }
+
+  // copies an expression without the operand types TypeInference proved for it. those may rest on checks
+  // earlier in the loop body, which have not run yet where the hoisted copy is evaluated
+  private static final class Unproven extends AstRewriter {
+    @Override
+    public Expr visitBinaryExpr(Expr.Binary expr) {
+      return new Expr.Binary(rewrite(expr.left), expr.operator, rewrite(expr.right));
+    }
+
+    @Override
+    public Expr visitUnaryExpr(Expr.Unary expr) {
+      return new Expr.Unary(expr.operator, rewrite(expr.right));
+    }
+  }
+
+  // what a loop body changes, not counting the bodies of functions it declares
+  private static final class LoopFacts {
+    final Set<Integer> variant = new HashSet<>(); // local slots the body assigns or declares
+    final Set<Symbol> assignedGlobals = new HashSet<>();
+    boolean calls = false; // any call could change globals and captured locals
+    boolean declaresFunctions = false;
+
+    void scan(Object node) {
+      if (node instanceof List) {
+        for (Object element : (List<?>)node) {
+          scan(element);
+        }
+      } else if (node instanceof Expr.Assign) {
+        Expr.Assign assign = (Expr.Assign)node;
+        if (assign.slot >= 0 && !assign.upvalue) variant.add(assign.slot);
+        if (assign.slot < 0 && !assign.upvalue) assignedGlobals.add(assign.name.symbol);
+        scan(assign.value);
+      } else if (node instanceof Expr.Call) {
+        calls = true;
+        scan(((Expr.Call)node).callee);
+        scan(((Expr.Call)node).arguments);
+      } else if (node instanceof Expr.Binary) {
+        scan(((Expr.Binary)node).left);
+        scan(((Expr.Binary)node).right);
+      } else if (node instanceof Expr.Logical) {
+        scan(((Expr.Logical)node).left);
+        scan(((Expr.Logical)node).right);
+      } else if (node instanceof Expr.Get) {
+        scan(((Expr.Get)node).object);
+      } else if (node instanceof Expr.Set) {
+        scan(((Expr.Set)node).object);
+        scan(((Expr.Set)node).value);
+      } else if (node instanceof Expr.Grouping) {
+        scan(((Expr.Grouping)node).expression);
+      } else if (node instanceof Expr.Unary) {
+        scan(((Expr.Unary)node).right);
+      } else if (node instanceof Stmt.Expression) {
+        scan(((Stmt.Expression)node).expression);
+      } else if (node instanceof Stmt.Print) {
+        scan(((Stmt.Print)node).expression);
+      } else if (node instanceof Stmt.Var) {
+        variant.add(((Stmt.Var)node).slot);
+        scan(((Stmt.Var)node).initializer);
+      } else if (node instanceof Stmt.Return) {
+        scan(((Stmt.Return)node).value);
+      } else if (node instanceof Stmt.Block) {
+        scan(((Stmt.Block)node).statements);
+      } else if (node instanceof Stmt.If) {
+        scan(((Stmt.If)node).condition);
+        scan(((Stmt.If)node).thenBranch);
+        scan(((Stmt.If)node).elseBranch);
+      } else if (node instanceof Stmt.While) {
+        scan(((Stmt.While)node).condition);
+        scan(((Stmt.While)node).body);
+      } else if (node instanceof Stmt.Switch) {
+        Stmt.Switch stmt = (Stmt.Switch)node;
+        scan(stmt.condition);
+        for (Stmt.Case caseStmt : stmt.cases) {
+          scan(caseStmt.value);
+          scan(caseStmt.statements);
+        }
+        if (stmt.defaultCase != null) scan(stmt.defaultCase.statements);
+      } else if (node instanceof Stmt.Function || node instanceof Stmt.Class) {
+        declaresFunctions = true;
+      }
+    }
+  }
+
+  // the size of the frame the statements declare their locals in, judging by the slots they use, and the
+  // slots that closures made there capture. nested function bodies are frames of their own
+  static int scanFrame(Object node, Set<Integer> captured) {
+    int size = 0;
+    if (node instanceof List) {
+      for (Object element : (List<?>)node) {
+        size = Math.max(size, scanFrame(element, captured));
+      }
+    } else if (node instanceof Stmt.Var) {
+      size = ((Stmt.Var)node).slot + 1;
+    } else if (node instanceof Stmt.Function) {
+      Stmt.Function function = (Stmt.Function)node;
+      for (int capture : function.captures) {
+        if (capture >= 0) captured.add(capture);
+      }
+      size = function.slot + 1;
+    } else if (node instanceof Stmt.Class) {
+      Stmt.Class klass = (Stmt.Class)node;
+      scanFrame(klass.methods, captured);
+      size = Math.max(klass.slot, klass.superclass != null ? klass.superSlot : -1) + 1;
+    } else if (node instanceof Stmt.Block) {
+      size = scanFrame(((Stmt.Block)node).statements, captured);
+    } else if (node instanceof Stmt.If) {
+      size = Math.max(scanFrame(((Stmt.If)node).thenBranch, captured),
+          scanFrame(((Stmt.If)node).elseBranch, captured));
+    } else if (node instanceof Stmt.While) {
+      size = scanFrame(((Stmt.While)node).body, captured);
+    } else if (node instanceof Stmt.Switch) {
+      Stmt.Switch stmt = (Stmt.Switch)node;
+      for (Stmt.Case caseStmt : stmt.cases) {
+        size = Math.max(size, scanFrame(caseStmt.statements, captured));
+      }
+      if (stmt.defaultCase != null) size = Math.max(size, scanFrame(stmt.defaultCase.statements, captured));
+    }
+    return size;
+  }
+}
@@ -6,24 +6,57 @@ import java.io.InputStreamReader;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.List;
 
 public class Lox {
   private static final Interpreter interpreter = new Interpreter();
+  private static final ClosureCompiler closureCompiler = new ClosureCompiler();
+  private static final VM vm = new VM();
+  private static String engine = "tree"; // which backend runs programs, picked with --engine=
+  private static int maxFrames = Interpreter.DEFAULT_MAX_FRAMES; // call depth limit of the stackless engine
+  private static final List<Optimizer> optimizers = Arrays.asList( // run in order
+      new ConstantFolder(), new SwitchLowering(), new TypeInference(), new LoopOptimizer());
+  private static boolean dumpAst = false; // print the optimized tree before running it, with --dump-ast
   static boolean hadError = false; //initially no error
   static boolean hadRuntimeError = false;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
-      System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    String script = null;
+    for (String arg : args) {
+      if (arg.startsWith("--engine=")) {
+        engine = arg.substring("--engine=".length());
+      } else if (arg.startsWith("--max-frames=")) {
+        try {
+          maxFrames = Integer.parseInt(arg.substring("--max-frames=".length()));
+        } catch (NumberFormatException e) {
+          usage();
+        }
+        if (maxFrames <= 0) usage();
+      } else if (arg.equals("--dump-ast")) {
+        dumpAst = true;
+      } else if (script == null) {
+        script = arg;
+      } else {
+        usage();
+      }
+    }
+    if (!engine.equals("tree") && !engine.equals("stackless") && !engine.equals("closure") && !engine.equals("vm")) {
+      usage();
+    }
+
+    if (script != null) {
+      runFile(script);
     } else {
       runPrompt();
     }
   }
 
+  private static void usage() {
+    System.out.println("Usage: jlox [--engine=tree|stackless|closure|vm] [--max-frames=n] [--dump-ast] [script]");
+    System.exit(64);
+  }
+
   private static void runFile(String path) throws IOException {// run file from filepath
     byte[] bytes = Files.readAllBytes(Paths.get(path));
     run(new String(bytes, Charset.defaultCharset()));
@@ -51,11 +84,31 @@ public class Lox {
     List<Stmt> statements = parser.parse();
     if (hadError) return;
 
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver();
     resolver.resolve(statements);
     if (hadError) return;
 
-    interpreter.interpret(statements);
+    int frameSize = resolver.frameSize();
+    for (Optimizer optimizer : optimizers) {
+      statements = optimizer.optimize(statements);
+      frameSize = optimizer.frameSize(frameSize);
+    }
+    if (dumpAst) {
+      AstPrinter printer = new AstPrinter();
+      for (Stmt statement : statements) {
+        System.out.println(printer.print(statement));
+      }
+    }
+
+    if (engine.equals("closure")) {
+      closureCompiler.interpret(statements, frameSize);
+    } else if (engine.equals("vm")) {
+      vm.interpret(statements);
+    } else if (engine.equals("stackless")) {
+      interpreter.interpretStackless(statements, frameSize, maxFrames);
+    } else {
+      interpreter.interpret(statements, frameSize);
+    }
   }
 
   static void error(int line, String message) { //final function, uses report()
@@ -1,8 +1,26 @@
 package com.sjlox.lox;
 
-import java.util.List;
-
 interface LoxCallable {
+  Object[] NO_ARGUMENTS = new Object[0];
+
   int arity();
-  Object call(Interpreter interpreter, List<Object> arguments);
+  Object call(Interpreter interpreter, Object[] arguments);
+
+  // fixed-arity entry points for call sites that know how many arguments they pass. callers check the
+  // arity first; callables that can run without an argument array override them
+  default Object call0(Interpreter interpreter) {
+    return call(interpreter, NO_ARGUMENTS);
+  }
+
+  default Object call1(Interpreter interpreter, Object a) {
+    return call(interpreter, new Object[] {a});
+  }
+
+  default Object call2(Interpreter interpreter, Object a, Object b) {
+    return call(interpreter, new Object[] {a, b});
+  }
+
+  default Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return call(interpreter, new Object[] {a, b, c});
+  }
 }
@@ -1,29 +1,35 @@
 package com.sjlox.lox;
 
-import java.util.List;
+import java.util.HashMap;
 import java.util.Map;
 
 class LoxClass implements LoxCallable {
   final String name; // stores the name of the class
   final LoxClass superclass; // reference to the superclass if the class has one
-  private final Map<String, LoxFunction> methods; // stores methods defined in the class
+  private final Map<Symbol, LoxFunction> methods; // own and inherited methods, flattened when the class is defined
+  final LoxFunction initializer; // cached "init", or null
+  private final int arity; // cached initializer arity
+  final Shape rootShape = new Shape(); // shape every new instance starts with
 
   // constructor to initialize a LoxClass with its name, superclass, and methods
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+  LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
     this.superclass = superclass;
     this.name = name;
-    this.methods = methods;
+
+    // classes are never modified after definition, so the inherited methods can be copied down once;
+    // the class's own methods go in last and override them
+    Map<Symbol, LoxFunction> table = new HashMap<>();
+    if (superclass != null) table.putAll(superclass.methods);
+    table.putAll(methods);
+    this.methods = table;
+
+    this.initializer = table.get(Symbol.INIT);
+    this.arity = initializer == null ? 0 : initializer.arity();
   }
 
-  // searches for a method in the class, and if not found, checks the superclass
-  LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
-    }
-    if (superclass != null) {
-      return superclass.findMethod(name);
-    }
-    return null;
+  // looks a method up in the flattened table, inherited ones included
+  LoxFunction findMethod(Symbol name) {
+    return methods.get(name);
   }
 
   @Override
@@ -33,20 +39,44 @@ class LoxClass implements LoxCallable {
 
   // handles object instantiation and calls the initializer method if it exists
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     LoxInstance instance = new LoxInstance(this); // creates a new instance of the class
-    LoxFunction initializer = findMethod("init"); // looks for an initializer method
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments); // binds and calls the initializer
+      initializer.invoke(interpreter, instance, arguments); // runs the initializer on the new instance
     }
     return instance; // returns the newly created instance
   }
 
+  @Override
+  public Object call0(Interpreter interpreter) {
+    return construct(interpreter, 0, null, null, null);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    return construct(interpreter, 1, a, null, null);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    return construct(interpreter, 2, a, b, null);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return construct(interpreter, 3, a, b, c);
+  }
+
+  // call for the fixed-arity entry points: the arguments go to the initializer without an array
+  private Object construct(Interpreter interpreter, int count, Object a, Object b, Object c) {
+    LoxInstance instance = new LoxInstance(this);
+    if (initializer != null) initializer.invoke(interpreter, instance, count, a, b, c);
+    return instance;
+  }
+
   // returns the number of arguments required by the initializer, if present
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
-    if (initializer == null) return 0;
-    return initializer.arity();
+    return arity;
   }
 }
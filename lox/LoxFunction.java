@@ -1,22 +1,44 @@
 package com.sjlox.lox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
-  private final Stmt.Function declaration;
-  private final Environment closure;
-  private final boolean isInitializer;
+  final Stmt.Function declaration;
+  final Upvalue[] upvalues; // just the outer variables the body uses
+  final boolean isMethod; // methods keep 'this' in slot 0 of their frame
+  final boolean isInitializer;
+  final LoxInstance receiver; // set on bound methods only
+  private int calls = 0; // counted up to Jit.THRESHOLD, when compilation is attempted once
+  private Jit.Compiled compiled = null;
+
+  // a call made by a return statement, which the engine hands back to invoke instead of making it
+  static final class TailCall {
+    LoxFunction function;
+    LoxInstance receiver;
+    Object[] arguments;
+
+    Object set(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+      this.function = function;
+      this.receiver = receiver;
+      this.arguments = arguments;
+      return Interpreter.TAIL_CALL;
+    }
+  }
 
-  LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+  LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isMethod, boolean isInitializer) {
+    this(declaration, upvalues, isMethod, isInitializer, null);
+  }
+
+  LoxFunction(Stmt.Function declaration, Upvalue[] upvalues, boolean isMethod, boolean isInitializer,
+              LoxInstance receiver) {
     this.isInitializer = isInitializer;
-    this.closure = closure;
+    this.isMethod = isMethod;
+    this.upvalues = upvalues;
     this.declaration = declaration;
+    this.receiver = receiver;
   }
 
+  // only needed when a method is used as a value; calls of obj.method() go through invoke instead
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-    return new LoxFunction(declaration, environment, isInitializer);
+    return new LoxFunction(declaration, upvalues, isMethod, isInitializer, instance);
   }
 
   @Override
@@ -30,20 +52,105 @@ class LoxFunction implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    Environment environment = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i));
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return invoke(interpreter, receiver, arguments);
+  }
+
+  @Override
+  public Object call0(Interpreter interpreter) {
+    return invoke(interpreter, receiver, 0, null, null, null);
+  }
+
+  @Override
+  public Object call1(Interpreter interpreter, Object a) {
+    return invoke(interpreter, receiver, 1, a, null, null);
+  }
+
+  @Override
+  public Object call2(Interpreter interpreter, Object a, Object b) {
+    return invoke(interpreter, receiver, 2, a, b, null);
+  }
+
+  @Override
+  public Object call3(Interpreter interpreter, Object a, Object b, Object c) {
+    return invoke(interpreter, receiver, 3, a, b, c);
+  }
+
+  // the first count of a, b and c as an argument array
+  static Object[] arguments(int count, Object a, Object b, Object c) {
+    switch (count) {
+      case 0: return NO_ARGUMENTS;
+      case 1: return new Object[] {a};
+      case 2: return new Object[] {a, b};
+      default: return new Object[] {a, b, c};
     }
+  }
+
+  // the result of the call if the function is jit-compiled and the compiled code can take it, otherwise
+  // NOT_COMPILED and the caller interprets the body. counts the call towards compilation first. globals and
+  // stack belong to the engine making the call. nested says whether a recursive kernel may nest on the jvm
+  // stack, which the stackless mode, bounding recursion by its own frame count, does not allow
+  static final Object NOT_COMPILED = new Object();
+
+  Object runCompiled(Environment globals, Object[] stack, Object[] arguments, boolean nested) {
+    if (countCall() && (nested || !compiled.recursive()) && compiled.canRun(this, globals, stack, arguments)) {
+      try {
+        return compiled.code.call(arguments);
+      } catch (Jit.Deopt deopt) {
+        compiled = null; // it returned nil somewhere; keep interpreting from now on
+      }
+    }
+    return NOT_COMPILED;
+  }
+
+  // runs the function with 'this' bound to receiver, which is ignored unless it is a method. this is a
+  // trampoline: when the body ends in a tail call, the callee runs next in this same java frame, so tail
+  // recursion takes constant stack
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    LoxFunction function = this;
+    for (;;) {
+      Object result = interpreter.runCompiled(function, arguments);
+      if (result != NOT_COMPILED) return result;
+
+      Object signal = interpreter.executeFrame(function, receiver, arguments);
+      if (signal == Interpreter.TAIL_CALL) {
+        TailCall call = interpreter.tailCall;
+        function = call.function;
+        receiver = call.receiver;
+        arguments = call.arguments;
+        call.set(null, null, null);
+        continue;
+      }
+
+      Object value = signal == Interpreter.RETURN ? interpreter.takeReturnValue() : null;
+      return function.isInitializer ? receiver : value;
+    }
+  }
+
+  // counts a call towards compilation, and tells whether the function is jit-compiled
+  boolean countCall() {
+    if (calls < Jit.THRESHOLD && ++calls == Jit.THRESHOLD && !isMethod) {
+      compiled = Jit.compile(declaration);
+    }
+    return compiled != null;
+  }
+
+  // invoke with the first count of a, b and c as the arguments. they go into the frame one by one, so only
+  // jit-compiled code, which takes an array, and a tail call out of the body need one
+  Object invoke(Interpreter interpreter, LoxInstance receiver, int count, Object a, Object b, Object c) {
+    if (countCall()) return invoke(interpreter, receiver, arguments(count, a, b, c));
 
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
-      return returnValue.value;
+    Object signal = interpreter.executeFrame(this, receiver, count, a, b, c);
+    if (signal == Interpreter.TAIL_CALL) {
+      TailCall call = interpreter.tailCall;
+      LoxFunction function = call.function;
+      LoxInstance callReceiver = call.receiver;
+      Object[] arguments = call.arguments;
+      call.set(null, null, null);
+      return function.invoke(interpreter, callReceiver, arguments);
     }
 
-    if (isInitializer) return closure.getAt(0, "this");
-    return null;
+    Object value = signal == Interpreter.RETURN ? interpreter.takeReturnValue() : null;
+    return isInitializer ? receiver : value;
   }
 }
@@ -1,38 +1,76 @@
 package com.sjlox.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 class LoxInstance {
+  private static final Object[] NO_FIELDS = new Object[0];
+
   // stores a reference to the class this instance belongs to
   private LoxClass klass;
 
-  // stores instance-specific fields
-  private final Map<String, Object> fields = new HashMap<>();
+  // layout of the fields below, shared with every instance that gained the same fields in the same order
+  private Shape shape;
+
+  // stores instance-specific fields, indexed by their slot in the shape
+  private Object[] fields = NO_FIELDS;
 
   // constructor initializes the instance with its class
   LoxInstance(LoxClass klass) {
     this.klass = klass;
+    this.shape = klass.rootShape;
   }
 
   // retrieves a property or method from the instance
   Object get(Token name) {
     // check if the property exists in the instance's fields
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    int slot = shape.slotOf(name.symbol);
+    if (slot >= 0) {
+      return fields[slot];
     }
 
     // check if the method exists in the class definition
-    LoxFunction method = klass.findMethod(name.lexeme);
+    LoxFunction method = klass.findMethod(name.symbol);
     if (method != null) return method.bind(this); // bind method to this instance
 
     // throw an error if the property or method is not found
     throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
   }
 
-  // sets a property on the instance
+  // sets a property on the instance, moving to a new shape if the field is new
   void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    int slot = shape.slotOf(name.symbol);
+    if (slot < 0) {
+      Shape next = shape.withField(name.symbol);
+      addField(next, next.size - 1, value);
+      return;
+    }
+    fields[slot] = value;
+  }
+
+  // direct slot access for inline caches, which already know the shape
+  LoxClass klass() {
+    return klass;
+  }
+
+  Shape shape() {
+    return shape;
+  }
+
+  Object field(int slot) {
+    return fields[slot];
+  }
+
+  void setField(int slot, Object value) {
+    fields[slot] = value;
+  }
+
+  // moves to the shape that adds a field and stores its first value
+  void addField(Shape next, int slot, Object value) {
+    shape = next;
+    if (slot == fields.length) {
+      fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+    }
+    fields[slot] = value;
   }
 
   // returns a string representation of the instance
@@ -0,0 +1,58 @@
+package com.sjlox.lox;
+
+// a lox string made by concatenation. lox strings are java Strings or these, and every engine treats
+// them alike through CharSequence. a LoxString is the first length chars of a builder that may be shared:
+// appending to the newest string grown from a builder extends it in place, so building a string up in a
+// loop costs amortized O(1) per step instead of copying everything so far
+final class LoxString implements CharSequence {
+  // shorter results are plain Strings, cheaper to make and compare than a builder
+  private static final int MIN_LENGTH = 64;
+
+  private final StringBuilder builder;
+  private final int length;
+  private String flat = null; // made on first use by printing or comparing
+
+  private LoxString(StringBuilder builder, int length) {
+    this.builder = builder;
+    this.length = length;
+  }
+
+  // left + right, for two lox strings
+  static CharSequence concat(CharSequence left, CharSequence right) {
+    int length = left.length() + right.length();
+    if (length < MIN_LENGTH) return left.toString() + right.toString();
+
+    if (left instanceof LoxString) {
+      LoxString prefix = (LoxString)left;
+      if (prefix.length == prefix.builder.length()) { // nothing was appended after it yet
+        prefix.builder.append(right.toString());
+        return new LoxString(prefix.builder, length);
+      }
+    }
+    StringBuilder builder = new StringBuilder(2 * length);
+    builder.append(left.toString()).append(right.toString());
+    return new LoxString(builder, length);
+  }
+
+  @Override
+  public int length() {
+    return length;
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index >= length) throw new IndexOutOfBoundsException(index);
+    return builder.charAt(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    return toString().subSequence(start, end);
+  }
+
+  @Override
+  public String toString() {
+    if (flat == null) flat = builder.substring(0, length);
+    return flat;
+  }
+}
@@ -0,0 +1,20 @@
+package com.sjlox.lox;
+
+// what TypeInference can prove about the values an expression or a local may have at some point of the
+// program. STRING covers both String and LoxString; ANY is everything it cannot narrow down
+enum LoxType {
+  NUMBER, STRING, BOOLEAN, NIL, ANY;
+
+  static LoxType of(Object value) {
+    if (value instanceof Double) return NUMBER;
+    if (value instanceof CharSequence) return STRING;
+    if (value instanceof Boolean) return BOOLEAN;
+    if (value == null) return NIL;
+    return ANY;
+  }
+
+  // the type of a value that may come from either side
+  LoxType join(LoxType other) {
+    return this == other ? this : ANY;
+  }
+}
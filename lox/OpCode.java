@@ -0,0 +1,48 @@
+package com.sjlox.lox;
+
+// instruction set of the bytecode vm; operands follow the opcode in the code array
+final class OpCode {
+  private OpCode() {}
+
+  static final int CONSTANT = 0;       // k: push constants[k]
+  static final int NIL = 1;
+  static final int TRUE = 2;
+  static final int FALSE = 3;
+  static final int POP = 4;
+  static final int GET_LOCAL = 5;      // slot
+  static final int SET_LOCAL = 6;      // slot
+  static final int GET_GLOBAL = 7;     // k: name token
+  static final int DEFINE_GLOBAL = 8;  // k: name token
+  static final int SET_GLOBAL = 9;     // k: name token
+  static final int GET_UPVALUE = 10;   // index
+  static final int SET_UPVALUE = 11;   // index
+  static final int GET_PROPERTY = 12;  // k: name
+  static final int SET_PROPERTY = 13;  // k: name
+  static final int GET_SUPER = 14;     // k: name
+  static final int EQUAL = 15;
+  static final int NOT_EQUAL = 16;
+  static final int GREATER = 17;
+  static final int GREATER_EQUAL = 18;
+  static final int LESS = 19;
+  static final int LESS_EQUAL = 20;
+  static final int ADD = 21;
+  static final int SUBTRACT = 22;
+  static final int MULTIPLY = 23;
+  static final int DIVIDE = 24;
+  static final int NOT = 25;
+  static final int NEGATE = 26;
+  static final int PRINT = 27;
+  static final int JUMP = 28;          // forward offset from the next instruction
+  static final int JUMP_IF_FALSE = 29; // forward offset; leaves the condition on the stack
+  static final int LOOP = 30;          // backward offset from the next instruction
+  static final int CALL = 31;          // argument count
+  static final int INVOKE = 32;        // k: name, argument count
+  static final int SUPER_INVOKE = 33;  // k: name, argument count
+  static final int CLOSURE = 34;       // k: function, then (isLocal, index) per upvalue
+  static final int CLOSE_UPVALUE = 35;
+  static final int RETURN = 36;
+  static final int CLASS = 37;         // k: name
+  static final int INHERIT = 38;
+  static final int METHOD = 39;        // k: name
+  static final int SWITCH = 40;        // k: jump table, k: forward offset per case then one for no match
+}
@@ -0,0 +1,14 @@
+package com.sjlox.lox;
+
+import java.util.List;
+
+// a stage of the optimization pipeline Lox.run puts between the resolver and the execution engines.
+// passes get resolved statements and return equivalent ones that are cheaper to run
+interface Optimizer {
+  List<Stmt> optimize(List<Stmt> statements);
+
+  // the number of slots the top-level code of the last optimized statements needs, for passes that add locals
+  default int frameSize(int frameSize) {
+    return frameSize;
+  }
+}
@@ -1,5 +1,6 @@
 package com.sjlox.lox;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -8,14 +9,11 @@ import java.util.Stack;
 import com.sjlox.lox.Lox;
 
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  private final Stack<Map<String, Boolean>> scopes = new Stack<>(); // Stack of scope maps
+  private final Stack<Scope> scopes = new Stack<>(); // Stack of scope maps
   private FunctionType currentFunction = FunctionType.NONE;
+  private Frame frame = new Frame(null); // the function being resolved, starting with the top-level code
+  private int breakables = 0; // loops and switches of the current function around the code being resolved
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
-  }
-  
   // enum to track whether we are inside a function, initializer, or method
   private enum FunctionType {
     NONE,
@@ -33,6 +31,43 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   private ClassType currentClass = ClassType.NONE;
 
+  // every function keeps its locals in a frame of slots on the value stack. a closure gets upvalues for
+  // just the outer locals it uses, and those stay on the stack until the scope declaring them ends
+  private static class Frame {
+    final Frame enclosing; // null for the top-level code
+    // what each upvalue of the function's closures is made from when they are created: a slot of the
+    // enclosing frame, or ~index for an upvalue the enclosing closure already has. ends up in captures
+    final List<Integer> captures = new ArrayList<>();
+    int slots = 0; // slots in use at this point
+    int size = 0; // most slots ever in use at once
+
+    Frame(Frame enclosing) {
+      this.enclosing = enclosing;
+    }
+  }
+
+  // a local variable in some scope and the frame slot the interpreter stores it in
+  private static class Local {
+    final int slot;
+    boolean defined = false; // false while its initializer is being resolved
+    boolean captured = false; // a closure refers to it, so it must be closed over when its scope ends
+
+    Local(int slot) {
+      this.slot = slot;
+    }
+  }
+
+  private static class Scope {
+    final Map<Symbol, Local> locals = new HashMap<>();
+    final Frame frame;
+    final int first; // slot of the first local declared in the scope
+
+    Scope(Frame frame) {
+      this.frame = frame;
+      this.first = frame.slots;
+    }
+  }
+
   //Resolves a list of statements by iterating over them.
    
   void resolve(List<Stmt> statements) {
@@ -41,11 +76,16 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     }
   }
 
+  // slots the top-level code needs for the locals of its blocks, below the frames of any calls
+  int frameSize() {
+    return frame.size;
+  }
+
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
     beginScope(); // enter a new block scope
     resolve(stmt.statements); // resolve the statements inside the block
-    endScope(); // exit the block scope
+    stmt.closeFrom = endScope(); // exit the block scope
     return null;
   }
 
@@ -54,12 +94,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS; // mark that we are inside a class
 
-    declare(stmt.name);
+    Local local = declare(stmt.name);
+    if (local != null) stmt.slot = local.slot;
     define(stmt.name);
 
     // prevent a class from inheriting from itself
     if (stmt.superclass != null &&
-        stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
+        stmt.name.symbol == stmt.superclass.name.symbol) {
       Lox.error(stmt.superclass.name,
           "A class can't inherit from itself.");
     }
@@ -73,25 +114,19 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     // if the class is a subclass, introduce 'super' in its scope
     if (stmt.superclass != null) {
       beginScope();
-      scopes.peek().put("super", true);
+      stmt.superSlot = defineSynthetic(Symbol.SUPER).slot;
     }
 
-    // introduce 'this' in the class scope
-    beginScope();
-    scopes.peek().put("this", true);
-
     // resolve methods inside the class
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
-      if (method.name.lexeme.equals("init")) {
+      if (method.name.symbol == Symbol.INIT) {
         declaration = FunctionType.INITIALIZER;
       }
 
       resolveFunction(method, declaration); // resolve method declarations
     }
 
-    endScope(); // exit method scope
-
     if (stmt.superclass != null) endScope(); // exit superclass scope if applicable
 
     currentClass = enclosingClass; // restore previous class context
@@ -106,7 +141,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    Local local = declare(stmt.name);
+    if (local != null) stmt.slot = local.slot;
     define(stmt.name);
 
     resolveFunction(stmt, FunctionType.FUNCTION); // resolve function body
@@ -120,7 +156,10 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     
   @Override
   public Void visitBreakStmt(Stmt.Break stmt) {
-    return null; // no additional resolution needed for break
+    if (breakables == 0) {
+      Lox.error(stmt.keyword, "Can't break outside a loop or switch.");
+    }
+    return null;
   }
   
   @Override
@@ -164,7 +203,8 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name); // declare the variable
+    Local local = declare(stmt.name); // declare the variable
+    if (local != null) stmt.slot = local.slot;
     if (stmt.initializer != null) {
       resolve(stmt.initializer); // resolve the initializer expression if present
     }
@@ -175,14 +215,21 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
     resolve(stmt.condition); // resolve the loop condition
+    breakables++;
     resolve(stmt.body); // resolve the loop body
+    breakables--;
     return null;
   }
 
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value); // resolve the assigned value
-    resolveLocal(expr, expr.name); // resolve variable assignment in the correct scope
+    // resolve variable assignment in the correct scope
+    expr.slot = slotOf(expr.name.symbol);
+    if (expr.slot < 0) {
+      expr.slot = upvalueOf(expr.name.symbol);
+      expr.upvalue = expr.slot >= 0;
+    }
     return null;
   }
 
@@ -238,6 +285,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitSwitchStmt(Stmt.Switch stmt) {
     resolve(stmt.condition);
+    breakables++;
     for (Stmt.Case caseStmt : stmt.cases) {
         resolve(caseStmt.value);
         resolve(caseStmt.statements);
@@ -245,6 +293,7 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     if (stmt.defaultCase != null) {
         resolve(stmt.defaultCase.statements);
     }
+    breakables--;
     return null;
   }
 
@@ -258,7 +307,13 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
           "Can't use 'super' in a class with no superclass.");
     }
 
-    resolveLocal(expr, expr.keyword);
+    // 'super' is declared around the methods, so even the method itself reaches it as an upvalue
+    expr.slot = upvalueOf(expr.keyword.symbol);
+    expr.thisSlot = slotOf(Symbol.THIS);
+    if (expr.thisSlot < 0) {
+      expr.thisSlot = upvalueOf(Symbol.THIS);
+      expr.thisUpvalue = true;
+    }
     return null;
   }
 
@@ -270,7 +325,11 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       return null;
     }
 
-    resolveLocal(expr, expr.keyword);
+    expr.slot = slotOf(Symbol.THIS);
+    if (expr.slot < 0) {
+      expr.slot = upvalueOf(Symbol.THIS);
+      expr.upvalue = true;
+    }
     return null;
   }
 
@@ -283,12 +342,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
     if (!scopes.isEmpty() &&
-        scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
+        scopes.peek().locals.containsKey(expr.name.symbol) &&
+        !scopes.peek().locals.get(expr.name.symbol).defined) {
       Lox.error(expr.name,
           "Can't read local variable in its own initializer.");
     }
 
-    resolveLocal(expr, expr.name);
+    expr.slot = slotOf(expr.name.symbol);
+    if (expr.slot < 0) {
+      expr.slot = upvalueOf(expr.name.symbol);
+      expr.upvalue = expr.slot >= 0;
+    }
     return null;
   }
 
@@ -303,48 +367,120 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private void resolveFunction(
       Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
+    int enclosingBreakables = breakables;
     currentFunction = type;
+    frame = new Frame(frame);
+    breakables = 0; // a break can't leave the function
 
     beginScope();
+    // methods get their receiver in slot 0 of their own frame, ahead of the parameters
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      defineSynthetic(Symbol.THIS);
+    }
     for (Token param : function.params) {
       declare(param);
       define(param);
     }
     resolve(function.body);
-    endScope();
+    endScope(); // returning closes over everything left in the frame
+
+    function.frameSize = frame.size;
+    function.captures = new int[frame.captures.size()];
+    for (int i = 0; i < function.captures.length; i++) {
+      function.captures[i] = frame.captures.get(i);
+    }
+    frame = frame.enclosing;
     currentFunction = enclosingFunction;
+    breakables = enclosingBreakables;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new Scope(frame));
   }
 
-  private void endScope() {
-    scopes.pop();
+  // later scopes reuse the slots. returns the first slot of the scope if a closure captured any of its
+  // locals, so the interpreter knows to close them over, or -1
+  private int endScope() {
+    Scope scope = scopes.pop();
+    frame.slots = scope.first;
+    for (Local local : scope.locals.values()) {
+      if (local.captured) return scope.first;
+    }
+    return -1;
   }
 
-  private void declare(Token name) {
-    if (scopes.isEmpty()) return;
+  // a new local in the innermost scope, in the next free slot of the frame
+  private Local newLocal() {
+    Local local = new Local(frame.slots++);
+    frame.size = Math.max(frame.size, frame.slots);
+    return local;
+  }
+
+  private Local declare(Token name) {
+    if (scopes.isEmpty()) return null;
 
-    Map<String, Boolean> scope = scopes.peek();
-    if (scope.containsKey(name.lexeme)) {
+    Map<Symbol, Local> scope = scopes.peek().locals;
+    if (scope.containsKey(name.symbol)) {
       Lox.error(name,
           "Already a variable with this name in this scope.");
     }
 
-    scope.put(name.lexeme, false);
+    Local local = newLocal(); // slots are handed out in declaration order
+    scope.put(name.symbol, local);
+    return local;
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().locals.get(name.symbol).defined = true;
+  }
+
+  // declares and defines an implicit name ('this' or 'super') in the current scope
+  private Local defineSynthetic(Symbol name) {
+    Local local = newLocal();
+    local.defined = true;
+    scopes.peek().locals.put(name, local);
+    return local;
   }
-  private void resolveLocal(Expr expr, Token name) {
+
+  // the local of a function's own scopes a name refers to, or null
+  private Local find(Frame owner, Symbol name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
-      }
+      Scope scope = scopes.get(i);
+      if (scope.frame == owner && scope.locals.containsKey(name)) return scope.locals.get(name);
     }
+    return null;
+  }
+
+  // the frame slot of a local of the current function, or -1
+  private int slotOf(Symbol name) {
+    Local local = find(frame, name);
+    return local == null ? -1 : local.slot;
+  }
+
+  // the index of the current function's upvalue for a local of some enclosing function, or -1 if the name
+  // is global. every function in between gets an upvalue too, to hand it down
+  private int upvalueOf(Symbol name) {
+    return upvalueOf(frame, name);
+  }
+
+  private int upvalueOf(Frame function, Symbol name) {
+    if (function.enclosing == null) return -1;
+
+    Local local = find(function.enclosing, name);
+    if (local != null) {
+      local.captured = true;
+      return addCapture(function, local.slot);
+    }
+    int upvalue = upvalueOf(function.enclosing, name);
+    if (upvalue < 0) return -1;
+    return addCapture(function, ~upvalue);
+  }
+
+  private static int addCapture(Frame function, int capture) {
+    int index = function.captures.indexOf(capture);
+    if (index >= 0) return index;
+    function.captures.add(capture);
+    return function.captures.size() - 1;
   }
 }
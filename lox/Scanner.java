@@ -10,32 +10,32 @@ import com.sjlox.lox.Lox;
 import static com.sjlox.lox.TokenType.*; //static import to prevent TokenType from having to be written everywhere
 
 class Scanner {
-  private static final Map<String, TokenType> keywords;
+  private static final Map<Symbol, TokenType> keywords; // interned up front, so a lookup is by identity
 
   static {
     //map keywords to TokenType
     keywords = new HashMap<>();
-    keywords.put("and", AND);
-    keywords.put("class",CLASS);
-    keywords.put("else", ELSE);
-    keywords.put("false",FALSE);
-    keywords.put("for", FOR);
-    keywords.put("fun", FUN);
-    keywords.put("if", IF);
-    keywords.put("nil",NIL);
-    keywords.put("or", OR);
-    keywords.put("print",PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super",SUPER);
-    keywords.put("this", THIS);
-    keywords.put("true", TRUE);
-    keywords.put("var", VAR);
-    keywords.put("while", WHILE);
+    keywords.put(Symbol.intern("and"), AND);
+    keywords.put(Symbol.intern("class"), CLASS);
+    keywords.put(Symbol.intern("else"), ELSE);
+    keywords.put(Symbol.intern("false"), FALSE);
+    keywords.put(Symbol.intern("for"), FOR);
+    keywords.put(Symbol.intern("fun"), FUN);
+    keywords.put(Symbol.intern("if"), IF);
+    keywords.put(Symbol.intern("nil"), NIL);
+    keywords.put(Symbol.intern("or"), OR);
+    keywords.put(Symbol.intern("print"), PRINT);
+    keywords.put(Symbol.intern("return"), RETURN);
+    keywords.put(Symbol.intern("super"), SUPER);
+    keywords.put(Symbol.intern("this"), THIS);
+    keywords.put(Symbol.intern("true"), TRUE);
+    keywords.put(Symbol.intern("var"), VAR);
+    keywords.put(Symbol.intern("while"), WHILE);
     //keywords for case-switch
-    keywords.put("case", CASE);
-    keywords.put("switch", SWITCH);
-    keywords.put("default", DEFAULT);
-    keywords.put("break", BREAK);
+    keywords.put(Symbol.intern("case"), CASE);
+    keywords.put(Symbol.intern("switch"), SWITCH);
+    keywords.put(Symbol.intern("default"), DEFAULT);
+    keywords.put(Symbol.intern("break"), BREAK);
 
 
   }
@@ -127,10 +127,10 @@ class Scanner {
   private void identifier() { //check if its a keyword, else make identifier
     while (isAlphaNumeric(peek())) advance();
 
-    String text = source.substring(start, current); //check if it matches a keyword
-    TokenType type = keywords.get(text);
+    Symbol symbol = Symbol.intern(source, start, current); //check if it matches a keyword
+    TokenType type = keywords.get(symbol);
     if (type == null) type = IDENTIFIER;
-    addToken(type);
+    tokens.add(new Token(type, symbol, line));
   }
 
   private void number() {
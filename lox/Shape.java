@@ -0,0 +1,41 @@
+package com.sjlox.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// hidden class describing an instance's field layout. instances of a class that gained the same fields in
+// the same order share one shape, which maps each field name to a slot in the instance's value array
+final class Shape {
+  private final Map<Symbol, Integer> slots; // field name -> slot index
+  private Map<Symbol, Shape> transitions = null; // shape reached by adding each new field, created on demand
+  final int size; // number of fields
+
+  // the empty shape every instance of a class starts from
+  Shape() {
+    this.slots = new HashMap<>();
+    this.size = 0;
+  }
+
+  private Shape(Shape parent, Symbol name) {
+    this.slots = new HashMap<>(parent.slots);
+    this.slots.put(name, parent.size);
+    this.size = parent.size + 1;
+  }
+
+  // slot of a field, or -1 if instances of this shape do not have it
+  int slotOf(Symbol name) {
+    Integer slot = slots.get(name);
+    return slot == null ? -1 : slot;
+  }
+
+  // the shape after adding a field; the new field takes the next slot
+  Shape withField(Symbol name) {
+    if (transitions == null) transitions = new HashMap<>();
+    Shape next = transitions.get(name);
+    if (next == null) {
+      next = new Shape(this, name);
+      transitions.put(name, next);
+    }
+    return next;
+  }
+}
@@ -19,6 +19,8 @@ abstract class Stmt {
     R visitBreakStmt(Break stmt);
   }
 
+  int callFree;
+
   // Nested Stmt classes here...
 //> stmt-block
   static class Block extends Stmt {
@@ -32,6 +34,8 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    int closeFrom = -1;
   }
 //< stmt-block
 //> stmt-class
@@ -52,6 +56,9 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    int slot = -1;
+    int superSlot;
   }
 //< stmt-class
 //> stmt-expression
@@ -84,6 +91,10 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    int slot = -1;
+    int frameSize;
+    int[] captures;
   }
 //< stmt-function
 //> stmt-if
@@ -148,6 +159,8 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int slot = -1;
   }
 //< stmt-var
 //> stmt-while
@@ -164,6 +177,8 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    CountedLoop counted;
   }
 //< stmt-while
 //> stmt-switch
@@ -182,6 +197,8 @@ abstract class Stmt {
     final Expr condition;
     final List<Stmt.Case> cases;
     final Stmt.Default defaultCase;
+
+    JumpTable jumpTable;
   }
 //< stmt-switch
 //> stmt-case
@@ -0,0 +1,21 @@
+package com.sjlox.lox;
+
+import java.util.List;
+
+// gives switches over constant case values a jump table, so the engines find the matching case with one
+// lookup instead of comparing against every case. runs after ConstantFolder, which turns constant case
+// expressions into literals. switches with any other case value keep the sequential comparisons, since
+// evaluating those values in order may have side effects
+class SwitchLowering extends AstRewriter implements Optimizer {
+  @Override
+  public List<Stmt> optimize(List<Stmt> statements) {
+    return rewrite(statements);
+  }
+
+  @Override
+  public Stmt visitSwitchStmt(Stmt.Switch stmt) {
+    Stmt.Switch result = (Stmt.Switch)super.visitSwitchStmt(stmt);
+    result.jumpTable = JumpTable.build(result);
+    return result;
+  }
+}
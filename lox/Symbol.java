@@ -0,0 +1,73 @@
+package com.sjlox.lox;
+
+// an interned identifier. the scanner makes one per distinct name, so every runtime table can be keyed on
+// symbols: their hash is computed once and equality is identity, instead of hashing and comparing strings.
+// the table is shared by every run in the process, so interning is synchronized
+final class Symbol {
+  private static Symbol[] table = new Symbol[1024]; // open addressing, linear probing; size a power of two
+  private static int count = 0;
+
+  static final Symbol INIT = intern("init");
+  static final Symbol THIS = intern("this");
+  static final Symbol SUPER = intern("super");
+
+  final String name;
+  private final int hash;
+
+  private Symbol(String name, int hash) {
+    this.name = name;
+    this.hash = hash;
+  }
+
+  static Symbol intern(String name) {
+    return intern(name, 0, name.length());
+  }
+
+  // the symbol for source[start, end), made without copying out the chars unless the name is new
+  static synchronized Symbol intern(CharSequence source, int start, int end) {
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source.charAt(i); // same as String.hashCode
+    }
+
+    int index = hash & (table.length - 1);
+    for (Symbol symbol = table[index]; symbol != null; symbol = table[index]) {
+      if (symbol.hash == hash && symbol.matches(source, start, end)) return symbol;
+      index = (index + 1) & (table.length - 1);
+    }
+
+    Symbol symbol = new Symbol(source.subSequence(start, end).toString(), hash);
+    table[index] = symbol;
+    if (++count * 4 > table.length * 3) grow();
+    return symbol;
+  }
+
+  private boolean matches(CharSequence source, int start, int end) {
+    if (name.length() != end - start) return false;
+    for (int i = 0; i < name.length(); i++) {
+      if (name.charAt(i) != source.charAt(start + i)) return false;
+    }
+    return true;
+  }
+
+  private static void grow() {
+    Symbol[] old = table;
+    table = new Symbol[old.length * 2];
+    for (Symbol symbol : old) {
+      if (symbol == null) continue;
+      int index = symbol.hash & (table.length - 1);
+      while (table[index] != null) index = (index + 1) & (table.length - 1);
+      table[index] = symbol;
+    }
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
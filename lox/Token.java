@@ -5,12 +5,23 @@ class Token {
   final String lexeme;
   final Object literal;
   final int line;
+  final Symbol symbol; // the interned name, for identifiers and keywords only
 
   Token(TokenType type, String lexeme, Object literal, int line) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = null;
+  }
+
+  // identifiers and keywords share their lexeme with the symbol instead of copying it out of the source
+  Token(TokenType type, Symbol symbol, int line) {
+    this.type = type;
+    this.lexeme = symbol.name;
+    this.literal = null;
+    this.line = line;
+    this.symbol = symbol;
   }
 
   public String toString() {
@@ -0,0 +1,332 @@
+package com.sjlox.lox;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// flow-sensitive type inference over the locals of each frame. walks the code in execution order keeping
+// the type every slot holds at that point, joining the states where control flow merges and iterating
+// loops until their entry state is stable, and annotates Binary and Unary nodes with the types their
+// operands are proven to have. the engines use the annotations only to pick the unboxed path up front,
+// without profiling the node first: intermediate numbers stay unboxed, but every leaf is still checked as
+// it is unboxed, so a proof that does not hold fails with the usual error. an operator that needs numbers
+// also proves its variable operands are numbers from then on, or it would have failed. globals, upvalues
+// and locals some closure captures can change behind the analysis' back and are always ANY
+class TypeInference implements Optimizer, Expr.Visitor<LoxType>, Stmt.Visitor<Void> {
+  // the frame being analyzed
+  private Set<Integer> captured = new HashSet<>();
+  private LoxType[] types = new LoxType[0]; // by slot, at the current point of the code
+  private LoxType[] breaks; // joined states of the breaks out of the innermost loop or switch, or null
+
+  @Override
+  public List<Stmt> optimize(List<Stmt> statements) {
+    captured = new HashSet<>();
+    types = state(LoopOptimizer.scanFrame(statements, captured));
+    breaks = null;
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+    return statements;
+  }
+
+  private static LoxType[] state(int size) {
+    LoxType[] state = new LoxType[size];
+    Arrays.fill(state, LoxType.ANY);
+    return state;
+  }
+
+  private static LoxType[] join(LoxType[] a, LoxType[] b) {
+    if (b == null) return a;
+    if (a == null) return b;
+    LoxType[] state = state(Math.max(a.length, b.length));
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      state[i] = a[i].join(b[i]);
+    }
+    return state;
+  }
+
+  private LoxType get(int slot) {
+    return slot < types.length ? types[slot] : LoxType.ANY;
+  }
+
+  private void set(int slot, LoxType type) {
+    if (slot < 0) return; // a global
+    if (slot >= types.length) {
+      int size = types.length;
+      types = Arrays.copyOf(types, slot + 1);
+      Arrays.fill(types, size, types.length, LoxType.ANY);
+    }
+    types[slot] = captured.contains(slot) ? LoxType.ANY : type;
+  }
+
+  // an operation on the value of a local succeeded, so the local holds a value of the given type
+  private void refine(Expr operand, LoxType type) {
+    if (operand instanceof Expr.Variable && !((Expr.Variable)operand).upvalue) {
+      set(((Expr.Variable)operand).slot, type);
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    if (stmt.superclass != null) {
+      stmt.superclass.accept(this);
+      set(stmt.superSlot, LoxType.ANY);
+    }
+    for (Stmt.Function method : stmt.methods) {
+      method.accept(this);
+    }
+    set(stmt.slot, LoxType.ANY);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    stmt.expression.accept(this);
+    return null;
+  }
+
+  // the body is a frame of its own, which starts with nothing known about the parameters
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    set(stmt.slot, LoxType.ANY);
+
+    Set<Integer> enclosingCaptured = captured;
+    LoxType[] enclosingTypes = types;
+    LoxType[] enclosingBreaks = breaks;
+    captured = new HashSet<>();
+    LoopOptimizer.scanFrame(stmt.body, captured);
+    types = state(stmt.frameSize);
+    breaks = null;
+    for (Stmt statement : stmt.body) {
+      statement.accept(this);
+    }
+    captured = enclosingCaptured;
+    types = enclosingTypes;
+    breaks = enclosingBreaks;
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    stmt.condition.accept(this);
+    LoxType[] before = types.clone();
+    stmt.thenBranch.accept(this);
+    LoxType[] afterThen = types;
+    types = before;
+    if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+    types = join(afterThen, types);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    stmt.expression.accept(this);
+    return null;
+  }
+
+  // the code after a return is unreachable, so carrying on with the same state is merely imprecise
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value != null) stmt.value.accept(this);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    LoxType type = stmt.initializer == null ? LoxType.NIL : stmt.initializer.accept(this);
+    set(stmt.slot, type);
+    return null;
+  }
+
+  // runs the loop on the join of the states it can be entered with until that stops changing. every run
+  // annotates the nodes again, and the last one sees the final state
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    LoxType[] enclosingBreaks = breaks;
+    LoxType[] entry = types;
+    while (true) {
+      types = entry.clone();
+      breaks = null;
+      stmt.condition.accept(this);
+      LoxType[] exit = types.clone();
+      stmt.body.accept(this);
+
+      LoxType[] next = join(entry, types);
+      if (Arrays.equals(next, entry)) {
+        types = join(exit, breaks);
+        break;
+      }
+      entry = next;
+    }
+    breaks = enclosingBreaks;
+    return null;
+  }
+
+  // the case values are compared in order until one matches, and the cases then fall through into each
+  // other until a break. without a match the default case runs
+  @Override
+  public Void visitSwitchStmt(Stmt.Switch stmt) {
+    LoxType[] enclosingBreaks = breaks;
+    breaks = null;
+    stmt.condition.accept(this);
+
+    LoxType[] fallthrough = null;
+    for (Stmt.Case caseStmt : stmt.cases) {
+      caseStmt.value.accept(this);
+      LoxType[] unmatched = types;
+      types = join(unmatched.clone(), fallthrough);
+      caseStmt.accept(this);
+      fallthrough = types;
+      types = unmatched;
+    }
+    if (stmt.defaultCase != null) stmt.defaultCase.accept(this);
+
+    types = join(join(types, fallthrough), breaks);
+    breaks = enclosingBreaks;
+    return null;
+  }
+
+  @Override
+  public Void visitCaseStmt(Stmt.Case stmt) {
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitDefaultStmt(Stmt.Default stmt) {
+    for (Stmt statement : stmt.statements) {
+      statement.accept(this);
+    }
+    return null;
+  }
+
+  @Override
+  public Void visitBreakStmt(Stmt.Break stmt) {
+    breaks = join(breaks, types.clone());
+    return null;
+  }
+
+  @Override
+  public LoxType visitAssignExpr(Expr.Assign expr) {
+    LoxType type = expr.value.accept(this);
+    if (!expr.upvalue) set(expr.slot, type);
+    return type;
+  }
+
+  @Override
+  public LoxType visitBinaryExpr(Expr.Binary expr) {
+    LoxType left = expr.left.accept(this);
+    LoxType right = expr.right.accept(this);
+    expr.operands = left.join(right);
+
+    LoxType operands;
+    LoxType result;
+    switch (expr.operator.type) {
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        return LoxType.BOOLEAN;
+      case PLUS:
+        // a sum needs two numbers or two strings, so one side known to be either decides the other
+        if (left == LoxType.NUMBER || right == LoxType.NUMBER) {
+          operands = LoxType.NUMBER;
+        } else if (left == LoxType.STRING || right == LoxType.STRING) {
+          operands = LoxType.STRING;
+        } else {
+          return LoxType.ANY;
+        }
+        result = operands;
+        break;
+      case MINUS:
+      case SLASH:
+      case STAR:
+        operands = LoxType.NUMBER;
+        result = LoxType.NUMBER;
+        break;
+      default:
+        operands = LoxType.NUMBER;
+        result = LoxType.BOOLEAN;
+    }
+
+    // the left variable was read before the right side ran, which could have assigned it
+    refine(expr.right, operands);
+    if (expr.right instanceof Expr.Literal || expr.right instanceof Expr.Variable) refine(expr.left, operands);
+    return result;
+  }
+
+  @Override
+  public LoxType visitCallExpr(Expr.Call expr) {
+    expr.callee.accept(this);
+    for (Expr argument : expr.arguments) {
+      argument.accept(this);
+    }
+    return LoxType.ANY;
+  }
+
+  @Override
+  public LoxType visitGetExpr(Expr.Get expr) {
+    expr.object.accept(this);
+    return LoxType.ANY;
+  }
+
+  @Override
+  public LoxType visitGroupingExpr(Expr.Grouping expr) {
+    return expr.expression.accept(this);
+  }
+
+  @Override
+  public LoxType visitLiteralExpr(Expr.Literal expr) {
+    return LoxType.of(expr.value);
+  }
+
+  // the right operand may not run
+  @Override
+  public LoxType visitLogicalExpr(Expr.Logical expr) {
+    LoxType left = expr.left.accept(this);
+    LoxType[] skipped = types.clone();
+    LoxType right = expr.right.accept(this);
+    types = join(skipped, types);
+    return left.join(right);
+  }
+
+  @Override
+  public LoxType visitSetExpr(Expr.Set expr) {
+    expr.object.accept(this);
+    return expr.value.accept(this);
+  }
+
+  @Override
+  public LoxType visitSuperExpr(Expr.Super expr) {
+    return LoxType.ANY;
+  }
+
+  @Override
+  public LoxType visitThisExpr(Expr.This expr) {
+    return LoxType.ANY;
+  }
+
+  @Override
+  public LoxType visitUnaryExpr(Expr.Unary expr) {
+    LoxType right = expr.right.accept(this);
+    expr.operand = right;
+    if (expr.operator.type == TokenType.BANG) return LoxType.BOOLEAN;
+    refine(expr.right, LoxType.NUMBER);
+    return LoxType.NUMBER;
+  }
+
+  @Override
+  public LoxType visitVariableExpr(Expr.Variable expr) {
+    if (expr.upvalue || expr.slot < 0) return LoxType.ANY;
+    return get(expr.slot);
+  }
+}
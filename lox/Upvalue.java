@@ -0,0 +1,13 @@
+package com.sjlox.lox;
+
+// a variable captured by a closure: it lives on the value stack until its scope ends, then moves in here.
+// the tree-walker, the closure compiler and the vm all close over variables this way
+class Upvalue {
+  int slot; // stack index while open, -1 once closed
+  Object closed;
+  Upvalue next; // open upvalues form a list sorted by descending slot
+
+  Upvalue(int slot) {
+    this.slot = slot;
+  }
+}
@@ -0,0 +1,586 @@
+package com.sjlox.lox;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// stack-based virtual machine that runs the output of the BytecodeCompiler
+class VM {
+  private static final int FRAMES_MAX = 16384; // deepest call nesting before a stack overflow error
+
+  // a compiled function, shared by every closure made from it
+  static class ObjFunction {
+    final String name;
+    final int arity;
+    final Chunk chunk = new Chunk();
+    int upvalueCount = 0;
+    int maxStack = 0; // deepest the operand stack gets above the frame base, locals included
+
+    ObjFunction(String name, int arity) {
+      this.name = name;
+      this.arity = arity;
+    }
+
+    @Override
+    public String toString() {
+      return name == null ? "<script>" : "<fn " + name + ">";
+    }
+  }
+
+  static class ObjClosure {
+    final ObjFunction function;
+    final Upvalue[] upvalues;
+
+    ObjClosure(ObjFunction function) {
+      this.function = function;
+      this.upvalues = new Upvalue[function.upvalueCount];
+    }
+
+    @Override
+    public String toString() {
+      return function.toString();
+    }
+  }
+
+  static class ObjClass {
+    final String name;
+    final Map<Symbol, ObjClosure> methods = new HashMap<>(); // inherited methods are copied in
+    final Shape rootShape = new Shape();
+    ObjClosure initializer;
+
+    ObjClass(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String toString() {
+      return name;
+    }
+  }
+
+  static class ObjInstance {
+    private static final Object[] NO_FIELDS = new Object[0];
+
+    final ObjClass klass;
+    Shape shape;
+    Object[] fields = NO_FIELDS; // indexed by the field's slot in the shape
+
+    ObjInstance(ObjClass klass) {
+      this.klass = klass;
+      this.shape = klass.rootShape;
+    }
+
+    void set(Symbol name, Object value) {
+      int slot = shape.slotOf(name);
+      if (slot < 0) {
+        shape = shape.withField(name);
+        slot = shape.size - 1;
+        if (slot == fields.length) {
+          fields = Arrays.copyOf(fields, Math.max(4, fields.length * 2));
+        }
+      }
+      fields[slot] = value;
+    }
+
+    @Override
+    public String toString() {
+      return klass.name + " instance";
+    }
+  }
+
+  static class ObjBoundMethod {
+    final Object receiver;
+    final ObjClosure method;
+
+    ObjBoundMethod(Object receiver, ObjClosure method) {
+      this.receiver = receiver;
+      this.method = method;
+    }
+
+    @Override
+    public String toString() {
+      return method.toString();
+    }
+  }
+
+  private static class CallFrame {
+    ObjClosure closure;
+    int ip;
+    int base; // stack index of slot 0: the callee, or the receiver for methods
+  }
+
+  final Environment globals = new Environment();
+  private Object[] stack = new Object[256];
+  private int sp = 0;
+  private CallFrame[] frames = new CallFrame[64];
+  private int frameCount = 0;
+  private Upvalue openUpvalues = null;
+
+  VM() {
+    Interpreter.defineNatives(globals);
+  }
+
+  // compile and run a list of statements
+  void interpret(List<Stmt> statements) {
+    ObjFunction script = new BytecodeCompiler().compile(statements);
+    if (Lox.hadError) return;
+    ObjClosure closure = new ObjClosure(script);
+    try {
+      push(closure);
+      call(closure, 0, null);
+      run();
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+      resetStack();
+    }
+  }
+
+  private void resetStack() {
+    Arrays.fill(stack, 0, sp, null);
+    sp = 0;
+    frameCount = 0;
+    openUpvalues = null;
+  }
+
+  private void push(Object value) {
+    stack[sp++] = value;
+  }
+
+  private Object pop() {
+    Object value = stack[--sp];
+    stack[sp] = null;
+    return value;
+  }
+
+  private Object peek(int distance) {
+    return stack[sp - 1 - distance];
+  }
+
+  // the cell of the global named by a constant, looked up by name only the first time
+  private Global cell(Global[] cells, Object[] constants, int index) {
+    Global cell = cells[index];
+    if (cell == null) cell = cells[index] = globals.cell(((Token)constants[index]).symbol);
+    return cell;
+  }
+
+  private void run() {
+    CallFrame frame = frames[frameCount - 1];
+    int[] code = frame.closure.function.chunk.code;
+    Object[] constants = frame.closure.function.chunk.constants;
+    Token[] tokens = frame.closure.function.chunk.tokens;
+    Global[] cells = frame.closure.function.chunk.globals;
+    int ip = frame.ip;
+    int base = frame.base;
+
+    for (;;) {
+      switch (code[ip++]) {
+        case OpCode.CONSTANT: push(constants[code[ip++]]); break;
+        case OpCode.NIL: push(null); break;
+        case OpCode.TRUE: push(true); break;
+        case OpCode.FALSE: push(false); break;
+        case OpCode.POP: pop(); break;
+
+        case OpCode.GET_LOCAL: push(stack[base + code[ip++]]); break;
+        case OpCode.SET_LOCAL: stack[base + code[ip++]] = peek(0); break;
+
+        case OpCode.GET_GLOBAL: {
+          int index = code[ip++];
+          push(cell(cells, constants, index).get((Token)constants[index]));
+          break;
+        }
+        case OpCode.DEFINE_GLOBAL: cell(cells, constants, code[ip++]).define(pop()); break;
+        case OpCode.SET_GLOBAL: {
+          int index = code[ip++];
+          cell(cells, constants, index).assign((Token)constants[index], peek(0));
+          break;
+        }
+
+        case OpCode.GET_UPVALUE: {
+          Upvalue upvalue = frame.closure.upvalues[code[ip++]];
+          push(upvalue.slot >= 0 ? stack[upvalue.slot] : upvalue.closed);
+          break;
+        }
+        case OpCode.SET_UPVALUE: {
+          Upvalue upvalue = frame.closure.upvalues[code[ip++]];
+          if (upvalue.slot >= 0) {
+            stack[upvalue.slot] = peek(0);
+          } else {
+            upvalue.closed = peek(0);
+          }
+          break;
+        }
+
+        case OpCode.GET_PROPERTY: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          Token token = tokens[ip - 1];
+          if (!(peek(0) instanceof ObjInstance)) {
+            throw new RuntimeError(token, "Only instances have properties.");
+          }
+          ObjInstance instance = (ObjInstance)peek(0);
+          int slot = instance.shape.slotOf(name);
+          if (slot >= 0) {
+            stack[sp - 1] = instance.fields[slot];
+            break;
+          }
+          stack[sp - 1] = new ObjBoundMethod(instance, findMethod(instance.klass, name, token));
+          break;
+        }
+        case OpCode.SET_PROPERTY: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          if (!(peek(1) instanceof ObjInstance)) {
+            throw new RuntimeError(tokens[ip - 1], "Only instances have fields.");
+          }
+          Object value = pop();
+          ((ObjInstance)pop()).set(name, value);
+          push(value);
+          break;
+        }
+        case OpCode.GET_SUPER: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          ObjClass superclass = (ObjClass)pop();
+          stack[sp - 1] = new ObjBoundMethod(peek(0), findMethod(superclass, name, tokens[ip - 1]));
+          break;
+        }
+
+        case OpCode.EQUAL: {
+          Object b = pop();
+          stack[sp - 1] = Interpreter.isEqual(peek(0), b);
+          break;
+        }
+        case OpCode.NOT_EQUAL: {
+          Object b = pop();
+          stack[sp - 1] = !Interpreter.isEqual(peek(0), b);
+          break;
+        }
+        case OpCode.GREATER: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) > b;
+          break;
+        }
+        case OpCode.GREATER_EQUAL: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) >= b;
+          break;
+        }
+        case OpCode.LESS: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) < b;
+          break;
+        }
+        case OpCode.LESS_EQUAL: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) <= b;
+          break;
+        }
+        case OpCode.ADD: {
+          Object b = peek(0);
+          Object a = peek(1);
+          if (a instanceof Double && b instanceof Double) {
+            pop();
+            stack[sp - 1] = (double)a + (double)b;
+          } else if (a instanceof CharSequence && b instanceof CharSequence) {
+            pop();
+            stack[sp - 1] = LoxString.concat((CharSequence)a, (CharSequence)b);
+          } else {
+            throw new RuntimeError(tokens[ip - 1], "operands must be of same type.");
+          }
+          break;
+        }
+        case OpCode.SUBTRACT: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) - b;
+          break;
+        }
+        case OpCode.MULTIPLY: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) * b;
+          break;
+        }
+        case OpCode.DIVIDE: {
+          Interpreter.checkNumberOperands(tokens[ip - 1], peek(1), peek(0));
+          double b = (double)pop();
+          stack[sp - 1] = (double)peek(0) / b;
+          break;
+        }
+        case OpCode.NOT: stack[sp - 1] = !Interpreter.isTruthy(peek(0)); break;
+        case OpCode.NEGATE:
+          Interpreter.checkNumberOperand(tokens[ip - 1], peek(0));
+          stack[sp - 1] = -(double)peek(0);
+          break;
+
+        case OpCode.PRINT: System.out.println(Interpreter.stringify(pop())); break;
+
+        case OpCode.JUMP: {
+          int offset = code[ip++];
+          ip += offset;
+          break;
+        }
+        case OpCode.JUMP_IF_FALSE: {
+          int offset = code[ip++];
+          if (!Interpreter.isTruthy(peek(0))) ip += offset;
+          break;
+        }
+        case OpCode.LOOP: {
+          int offset = code[ip++];
+          ip -= offset;
+          break;
+        }
+
+        case OpCode.CALL: {
+          int argCount = code[ip++];
+          frame.ip = ip;
+          int depth = frameCount;
+          callValue(peek(argCount), argCount, tokens[ip - 1]);
+          if (frameCount > depth && code[ip] == OpCode.RETURN) replaceCaller();
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          tokens = frame.closure.function.chunk.tokens;
+          cells = frame.closure.function.chunk.globals;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case OpCode.INVOKE: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          int argCount = code[ip++];
+          frame.ip = ip;
+          int depth = frameCount;
+          invoke(name, argCount, tokens[ip - 1]);
+          if (frameCount > depth && code[ip] == OpCode.RETURN) replaceCaller();
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          tokens = frame.closure.function.chunk.tokens;
+          cells = frame.closure.function.chunk.globals;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+        case OpCode.SUPER_INVOKE: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          int argCount = code[ip++];
+          frame.ip = ip;
+          ObjClass superclass = (ObjClass)pop();
+          int depth = frameCount;
+          call(findMethod(superclass, name, tokens[ip - 1]), argCount, tokens[ip - 1]);
+          if (frameCount > depth && code[ip] == OpCode.RETURN) replaceCaller();
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          tokens = frame.closure.function.chunk.tokens;
+          cells = frame.closure.function.chunk.globals;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+
+        case OpCode.CLOSURE: {
+          ObjFunction function = (ObjFunction)constants[code[ip++]];
+          ObjClosure closure = new ObjClosure(function);
+          for (int i = 0; i < closure.upvalues.length; i++) {
+            int isLocal = code[ip++];
+            int index = code[ip++];
+            closure.upvalues[i] = isLocal == 1 ? captureUpvalue(base + index) : frame.closure.upvalues[index];
+          }
+          push(closure);
+          break;
+        }
+        case OpCode.CLOSE_UPVALUE:
+          closeUpvalues(sp - 1);
+          pop();
+          break;
+
+        case OpCode.RETURN: {
+          Object result = pop();
+          closeUpvalues(base);
+          frameCount--;
+          Arrays.fill(stack, base, sp, null);
+          sp = base;
+          if (frameCount == 0) return;
+
+          push(result);
+          frame = frames[frameCount - 1];
+          code = frame.closure.function.chunk.code;
+          constants = frame.closure.function.chunk.constants;
+          tokens = frame.closure.function.chunk.tokens;
+          cells = frame.closure.function.chunk.globals;
+          ip = frame.ip;
+          base = frame.base;
+          break;
+        }
+
+        case OpCode.CLASS: push(new ObjClass((String)constants[code[ip++]])); break;
+        case OpCode.INHERIT: {
+          if (!(peek(1) instanceof ObjClass)) {
+            throw new RuntimeError(tokens[ip - 1], "Superclass must be a class.");
+          }
+          ObjClass superclass = (ObjClass)peek(1);
+          ObjClass subclass = (ObjClass)peek(0);
+          subclass.methods.putAll(superclass.methods); // copy-down: the subclass's own methods are added after
+          subclass.initializer = superclass.initializer;
+          pop();
+          break;
+        }
+        case OpCode.METHOD: {
+          Symbol name = (Symbol)constants[code[ip++]];
+          ObjClosure method = (ObjClosure)pop();
+          ObjClass klass = (ObjClass)peek(0);
+          klass.methods.put(name, method);
+          if (name == Symbol.INIT) klass.initializer = method;
+          break;
+        }
+        case OpCode.SWITCH: {
+          JumpTable table = (JumpTable)constants[code[ip++]];
+          int[] offsets = (int[])constants[code[ip++]];
+          int index = table.lookup(pop());
+          ip += offsets[index < 0 ? offsets.length - 1 : index];
+          break;
+        }
+      }
+    }
+  }
+
+  private ObjClosure findMethod(ObjClass klass, Symbol name, Token token) {
+    ObjClosure method = klass.methods.get(name);
+    if (method == null) {
+      throw new RuntimeError(token, "Undefined property '" + name + "'.");
+    }
+    return method;
+  }
+
+  // obj.name(args) without materializing a bound method unless name is a field
+  private void invoke(Symbol name, int argCount, Token token) {
+    Object receiver = peek(argCount);
+    if (!(receiver instanceof ObjInstance)) {
+      throw new RuntimeError(token, "Only instances have properties.");
+    }
+
+    ObjInstance instance = (ObjInstance)receiver;
+    int slot = instance.shape.slotOf(name);
+    if (slot >= 0) {
+      Object value = instance.fields[slot];
+      stack[sp - 1 - argCount] = value;
+      callValue(value, argCount, token);
+      return;
+    }
+    call(findMethod(instance.klass, name, token), argCount, token);
+  }
+
+  private void callValue(Object callee, int argCount, Token token) {
+    if (callee instanceof ObjClosure) {
+      call((ObjClosure)callee, argCount, token);
+    } else if (callee instanceof ObjBoundMethod) {
+      ObjBoundMethod bound = (ObjBoundMethod)callee;
+      stack[sp - 1 - argCount] = bound.receiver;
+      call(bound.method, argCount, token);
+    } else if (callee instanceof ObjClass) {
+      ObjClass klass = (ObjClass)callee;
+      stack[sp - 1 - argCount] = new ObjInstance(klass);
+      if (klass.initializer != null) {
+        call(klass.initializer, argCount, token);
+      } else if (argCount != 0) {
+        throw new RuntimeError(token, "Expected 0 arguments but got " + argCount + ".");
+      }
+    } else if (callee instanceof LoxCallable) {
+      LoxCallable function = (LoxCallable)callee;
+      if (argCount != function.arity()) {
+        throw new RuntimeError(token, "Expected " + function.arity() + " arguments but got " + argCount + ".");
+      }
+      Object result = callNative(function, argCount); // natives never touch the tree-walking interpreter
+      Arrays.fill(stack, sp - 1 - argCount, sp, null);
+      sp -= argCount + 1;
+      push(result);
+    } else {
+      throw new RuntimeError(token, "Can only call functions and classes.");
+    }
+  }
+
+  // the arguments are still on the stack, so up to three go through the fixed-arity entry points
+  private Object callNative(LoxCallable function, int argCount) {
+    switch (argCount) {
+      case 0: return function.call0(null);
+      case 1: return function.call1(null, peek(0));
+      case 2: return function.call2(null, peek(1), peek(0));
+      case 3: return function.call3(null, peek(2), peek(1), peek(0));
+    }
+    return function.call(null, Arrays.copyOfRange(stack, sp - argCount, sp));
+  }
+
+  // pushes a frame whose slot 0 is the callee (or receiver) already on the stack
+  private void call(ObjClosure closure, int argCount, Token token) {
+    ObjFunction function = closure.function;
+    if (argCount != function.arity) {
+      throw new RuntimeError(token, "Expected " + function.arity + " arguments but got " + argCount + ".");
+    }
+    if (frameCount == FRAMES_MAX) {
+      throw new RuntimeError(token, "Stack overflow.");
+    }
+
+    int base = sp - argCount - 1;
+    if (base + function.maxStack > stack.length) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + function.maxStack));
+    }
+    if (frameCount == frames.length) {
+      frames = Arrays.copyOf(frames, frames.length * 2);
+    }
+    if (frames[frameCount] == null) frames[frameCount] = new CallFrame();
+
+    CallFrame frame = frames[frameCount++];
+    frame.closure = closure;
+    frame.ip = 0;
+    frame.base = base;
+  }
+
+  // a call straight before a return is in tail position: the caller's frame is done, so the callee just
+  // pushed takes it over, moving its slots down, and tail recursion runs in a constant number of frames
+  private void replaceCaller() {
+    CallFrame caller = frames[frameCount - 2];
+    CallFrame callee = frames[frameCount - 1];
+    closeUpvalues(caller.base);
+    int top = caller.base + (sp - callee.base);
+    System.arraycopy(stack, callee.base, stack, caller.base, sp - callee.base);
+    Arrays.fill(stack, top, sp, null);
+    sp = top;
+    callee.base = caller.base;
+    frames[frameCount - 2] = callee;
+    frames[frameCount - 1] = caller;
+    frameCount--;
+  }
+
+  private Upvalue captureUpvalue(int slot) {
+    Upvalue previous = null;
+    Upvalue upvalue = openUpvalues;
+    while (upvalue != null && upvalue.slot > slot) {
+      previous = upvalue;
+      upvalue = upvalue.next;
+    }
+    if (upvalue != null && upvalue.slot == slot) return upvalue;
+
+    Upvalue created = new Upvalue(slot);
+    created.next = upvalue;
+    if (previous == null) {
+      openUpvalues = created;
+    } else {
+      previous.next = created;
+    }
+    return created;
+  }
+
+  // moves every captured variable at or above the given stack slot off the stack
+  private void closeUpvalues(int last) {
+    while (openUpvalues != null && openUpvalues.slot >= last) {
+      Upvalue upvalue = openUpvalues;
+      upvalue.closed = stack[upvalue.slot];
+      upvalue.slot = -1;
+      openUpvalues = upvalue.next;
+    }
+  }
+}
@@ -0,0 +1,55 @@
+#!/bin/bash
+# runs the lox programs in this directory on every engine and checks what they print against the
+# expectations written in their comments:
+#   // expect: <line>                a line the program prints, in order
+#   // expect runtime error: <msg>   the runtime error the program stops with, exit code 70
+#   // expect error: <line>          a line of the static errors the program is rejected with, exit code 65
+#   // args: <flags>                 more command-line flags, like --max-frames=100
+#   // engines: <names>              the engines to run it on instead of all four
+# usage: test/run.sh [file.lox...]
+
+root=$(cd "$(dirname "$0")/.." && pwd)
+work=$(mktemp -d)
+trap 'rm -rf "$work"' EXIT
+javac -Xlint:none -d "$work" "$root"/lox/*.java || exit 1
+
+tests=("$@")
+[ ${#tests[@]} -eq 0 ] && tests=("$root"/test/*.lox)
+
+passed=0
+failed=0
+for test in "${tests[@]}"; do
+  expected=$(sed -n 's|.*// expect: ||p' "$test")
+  runtime=$(sed -n 's|.*// expect runtime error: ||p' "$test")
+  errors=$(sed -n 's|.*// expect error: ||p' "$test")
+  args=$(sed -n 's|.*// args: ||p' "$test")
+  engines=$(sed -n 's|.*// engines: ||p' "$test")
+  [ -z "$engines" ] && engines="tree stackless closure vm"
+  status=0
+  [ -n "$runtime" ] && status=70
+  [ -n "$errors" ] && status=65
+
+  for engine in $engines; do
+    output=$(java -cp "$work" com.sjlox.lox.Lox --engine=$engine $args "$test" 2>"$work/stderr")
+    code=$?
+    # a runtime error is followed by the line it happened on, which the expectation leaves out
+    if [ -n "$runtime" ]; then
+      stderr=$(head -n 1 "$work/stderr")
+      expectedErrors=$runtime
+    else
+      stderr=$(cat "$work/stderr")
+      expectedErrors=$errors
+    fi
+
+    if [ "$output" == "$expected" ] && [ "$stderr" == "$expectedErrors" ] && [ $code -eq $status ]; then
+      passed=$((passed + 1))
+    else
+      failed=$((failed + 1))
+      echo "FAIL ${test#$root/} on $engine (exit code $code, expected $status)"
+      diff <(echo "$expected"; echo "$expectedErrors") <(echo "$output"; echo "$stderr") | sed 's/^/  /'
+    fi
+  done
+done
+
+echo "$passed passed, $failed failed"
+[ $failed -eq 0 ]
@@ -15,33 +15,36 @@ public class GenerateAst {
     String outputDir = args[0];
 
     // define the abstract syntax tree (ast) for expressions
-    defineAst(outputDir, "Expr", Arrays.asList(
-      "Assign   : Token name, Expr value", // variable assignment
-      "Binary   : Expr left, Token operator, Expr right", // binary operations like +, -, *
-      "Call     : Expr callee, Token paren, List<Expr> arguments", // function calls
-      "Get      : Expr object, Token name", // property access (object.field)
+    // fields after '|' are not constructor arguments: they are mutable annotations filled in by later passes
+    // annotations before the list go in the base class, for passes that handle every kind of node alike.
+    // callFree caches whether running the node can call a function, for the stackless interpreter
+    defineAst(outputDir, "Expr", "int callFree", Arrays.asList(
+      "Assign   : Token name, Expr value | int slot = -1, boolean upvalue, Global global", // variable assignment; global is the cell of a global, linked on first use
+      "Binary   : Expr left, Token operator, Expr right | int specialization, LoxType operands = LoxType.ANY", // binary operations like +, -, *
+      "Call     : Expr callee, Token paren, List<Expr> arguments | InlineCache cache = new InlineCache(), LoxCallable checked, Stmt.Function target, int targetCalls, Expr inlined", // function calls; checked is the last callee whose arity matched, target the function the site has called so far
+      "Get      : Expr object, Token name | InlineCache cache = new InlineCache()", // property access (object.field)
       "Grouping : Expr expression", // grouping with parentheses
       "Literal  : Object value", // literal values like numbers, strings, booleans
       "Logical  : Expr left, Token operator, Expr right", // logical operations (and, or)
-      "Set      : Expr object, Token name, Expr value", // property assignment (object.field = value)
-      "Super    : Token keyword, Token method", // refers to superclass methods
-      "This     : Token keyword", // refers to the current instance
-      "Unary    : Token operator, Expr right", // unary operations like -5 or !true
-      "Variable : Token name" // variable references
+      "Set      : Expr object, Token name, Expr value | InlineCache cache = new InlineCache()", // property assignment (object.field = value)
+      "Super    : Token keyword, Token method | int slot, int thisSlot, boolean thisUpvalue", // refers to superclass methods
+      "This     : Token keyword | int slot = -1, boolean upvalue", // refers to the current instance
+      "Unary    : Token operator, Expr right | int specialization, LoxType operand = LoxType.ANY", // unary operations like -5 or !true
+      "Variable : Token name | int slot = -1, boolean upvalue, Global global" // variable references; global as in Assign
     ));
 
     // define the abstract syntax tree (ast) for statements
-    defineAst(outputDir, "Stmt", Arrays.asList(
-        "Block      : List<Stmt> statements",
-        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+    defineAst(outputDir, "Stmt", "int callFree", Arrays.asList(
+        "Block      : List<Stmt> statements | int closeFrom = -1",
+        "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods | int slot = -1, int superSlot",
         "Expression : Expr expression",
-        "Function   : Token name, List<Token> params, List<Stmt> body",
+        "Function   : Token name, List<Token> params, List<Stmt> body | int slot = -1, int frameSize, int[] captures",
         "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
         "Print      : Expr expression",
         "Return     : Token keyword, Expr value",
-        "Var        : Token name, Expr initializer",
-        "While      : Expr condition, Stmt body",
-        "Switch     : Expr condition, List<Stmt.Case> cases, Stmt defaultCase",
+        "Var        : Token name, Expr initializer | int slot = -1",
+        "While      : Expr condition, Stmt body | CountedLoop counted",
+        "Switch     : Expr condition, List<Stmt.Case> cases, Stmt.Default defaultCase | JumpTable jumpTable",
         "Case       : Expr value, List<Stmt> statements",
         "Default    : List<Stmt> statements",
         "Break      : Token keyword"
@@ -50,15 +53,14 @@ public class GenerateAst {
 
   // generates a java class for the ast with subclasses for different node types
   private static void defineAst(
-      String outputDir, String baseName, List<String> types)
+      String outputDir, String baseName, String baseAnnotations, List<String> types)
       throws IOException {
     // create the output file for the ast class
     String path = outputDir + "/" + baseName + ".java";
     PrintWriter writer = new PrintWriter(path, "UTF-8");
 
     // write the package declaration
-    writer.println("//> Appendix II " + baseName.toLowerCase());
-    writer.println("package com.craftinginterpreters.lox;");
+    writer.println("package com.sjlox.lox;");
     writer.println();
     writer.println("import java.util.List;");
     writer.println();
@@ -67,6 +69,12 @@ public class GenerateAst {
     // define the visitor interface for the ast nodes
     defineVisitor(writer, baseName, types);
 
+    // mutable annotations shared by every node type
+    writer.println();
+    for (String annotation : baseAnnotations.split(", ")) {
+      writer.println("  " + annotation + ";");
+    }
+
     writer.println();
     writer.println("  // Nested " + baseName + " classes here...");
 
@@ -74,7 +82,12 @@ public class GenerateAst {
     for (String type : types) {
       String className = type.split(":")[0].trim();
       String fields = type.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      String annotations = null;
+      if (fields.contains("|")) {
+        annotations = fields.split("\\|")[1].trim();
+        fields = fields.split("\\|")[0].trim();
+      }
+      defineType(writer, baseName, className, fields, annotations);
     }
 
     writer.println();
@@ -102,7 +115,7 @@ public class GenerateAst {
   // generates a nested class for each ast node type
   private static void defineType(
       PrintWriter writer, String baseName,
-      String className, String fieldList) {
+      String className, String fieldList, String annotationList) {
     writer.println("//> " +
         baseName.toLowerCase() + "-" + className.toLowerCase());
     writer.println("  static class " + className + " extends " +
@@ -137,6 +150,14 @@ public class GenerateAst {
       writer.println("    final " + field + ";");
     }
 
+    // mutable annotations, written by the resolver and later passes
+    if (annotationList != null) {
+      writer.println();
+      for (String annotation : annotationList.split(", ")) {
+        writer.println("    " + annotation + ";");
+      }
+    }
+
     writer.println("  }");
     writer.println("//< " +
         baseName.toLowerCase() + "-" + className.toLowerCase());